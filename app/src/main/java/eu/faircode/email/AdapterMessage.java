@@ -127,6 +127,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
         private TextView tvTimeEx;
         private ImageView ivAttachments;
         private TextView tvSubject;
+        private TextView tvPreview;
         private TextView tvFolder;
         private TextView tvCount;
         private ImageView ivThread;
@@ -170,6 +171,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
             tvTimeEx = itemView.findViewById(R.id.tvTimeEx);
             ivAttachments = itemView.findViewById(R.id.ivAttachments);
             tvSubject = itemView.findViewById(R.id.tvSubject);
+            tvPreview = itemView.findViewById(R.id.tvPreview);
             tvFolder = itemView.findViewById(R.id.tvFolder);
             tvCount = itemView.findViewById(R.id.tvCount);
             ivThread = itemView.findViewById(R.id.ivThread);
@@ -232,6 +234,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
             tvTime.setText(null);
             ivAttachments.setVisibility(View.GONE);
             tvSubject.setText(null);
+            tvPreview.setVisibility(View.GONE);
             tvFolder.setText(null);
             tvCount.setText(null);
             ivThread.setVisibility(View.GONE);
@@ -292,6 +295,8 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
 
             ivAttachments.setVisibility(message.attachments > 0 ? View.VISIBLE : View.GONE);
             tvSubject.setText(message.subject);
+            tvPreview.setText(message.preview);
+            tvPreview.setVisibility(TextUtils.isEmpty(message.preview) ? View.GONE : View.VISIBLE);
 
             if (viewType == ViewType.UNIFIED)
                 tvFolder.setText(message.accountName);
@@ -21,6 +21,7 @@ package eu.faircode.email;
 
 import android.content.Context;
 import android.os.Handler;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.sun.mail.imap.IMAPFolder;
@@ -30,8 +31,10 @@ import com.sun.mail.util.FolderClosedIOException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -40,7 +43,6 @@ import javax.mail.Folder;
 import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessageRemovedException;
-import javax.mail.Session;
 import javax.mail.UIDFolder;
 import javax.mail.search.BodyTerm;
 import javax.mail.search.FromStringTerm;
@@ -52,6 +54,7 @@ import androidx.lifecycle.GenericLifecycleObserver;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleOwner;
 import androidx.paging.PagedList;
+import androidx.sqlite.db.SimpleSQLiteQuery;
 
 public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMessageEx> {
     private Context context;
@@ -64,12 +67,15 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
 
     private IMAPStore istore = null;
     private IMAPFolder ifolder = null;
-    private Message[] imessages = null;
+    private long[] uids = null;
     private List<Long> existing = new ArrayList<>();
     private int index;
     private boolean searching = false;
+    private boolean local = false;
     private int loaded = 0;
 
+    private static final int LOCAL_BATCH_SIZE = 500; // SQLite variable limit is 999
+
     interface IBoundaryCallbackMessages {
         void onLoading();
 
@@ -101,15 +107,15 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                             db.message().deleteFoundMessages();
 
                             try {
-                                if (istore != null)
-                                    istore.close();
+                                StorePool.closeFolder(ifolder);
+                                StorePool.release(istore);
                             } catch (Throwable ex) {
                                 Log.e(Helper.TAG, "Boundary " + ex + "\n" + Log.getStackTraceString(ex));
                             } finally {
                                 context = null;
                                 istore = null;
                                 ifolder = null;
-                                imessages = null;
+                                uids = null;
                                 existing.clear();
                             }
                         }
@@ -154,28 +160,29 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
 
                     DB db = DB.getInstance(context);
                     EntityFolder folder = db.folder().getFolder(fid);
+
+                    if (search != null && !local) {
+                        local = true;
+                        searchLocal(db, folder);
+                    }
+
                     if (folder.account == null) // outbox
                         return;
                     EntityAccount account = db.account().getAccount(folder.account);
 
-                    if (imessages == null) {
-                        Properties props = MessageHelper.getSessionProperties(account.auth_type);
-                        props.setProperty("mail.imap.throwsearchexception", "true");
-                        Session isession = Session.getInstance(props, null);
-
-                        Log.i(Helper.TAG, "Boundary connecting account=" + account.name);
-                        istore = (IMAPStore) isession.getStore("imaps");
-                        Helper.connect(context, istore, account);
+                    if (uids == null) {
+                        Log.i(Helper.TAG, "Boundary leasing account=" + account.name);
+                        istore = StorePool.lease(context, account);
 
                         Log.i(Helper.TAG, "Boundary opening folder=" + folder.name);
-                        ifolder = (IMAPFolder) istore.getFolder(folder.name);
-                        ifolder.open(Folder.READ_WRITE);
+                        ifolder = StorePool.openFolder(istore, folder.name, Folder.READ_WRITE);
 
                         Log.i(Helper.TAG, "Boundary searching=" + search);
+                        // Message objects are created per page only
                         if (search == null)
-                            imessages = ifolder.getMessages();
+                            uids = ServiceSynchronize.searchUids(ifolder, null);
                         else
-                            imessages = ifolder.search(
+                            uids = ServiceSynchronize.searchUids(ifolder,
                                     new OrTerm(
                                             new OrTerm(
                                                     new FromStringTerm(search),
@@ -187,16 +194,23 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                                             )
                                     )
                             );
-                        Log.i(Helper.TAG, "Boundary found messages=" + imessages.length);
+                        Log.i(Helper.TAG, "Boundary found messages=" + uids.length);
 
-                        index = imessages.length - 1;
+                        if (search != null)
+                            uids = skipLocal(db, folder, uids);
+
+                        index = uids.length - 1;
                     }
 
                     int count = 0;
                     while (index >= 0 && count < pageSize) {
                         Log.i(Helper.TAG, "Boundary index=" + index);
                         int from = Math.max(0, index - (pageSize - count) + 1);
-                        Message[] isub = Arrays.copyOfRange(imessages, from, index + 1);
+                        List<Message> page = new ArrayList<>();
+                        for (Message imessage : ifolder.getMessagesByUID(Arrays.copyOfRange(uids, from, index + 1)))
+                            if (imessage != null) // expunged
+                                page.add(imessage);
+                        Message[] isub = page.toArray(new Message[0]);
                         index -= (pageSize - count);
 
                         FetchProfile fp = new FetchProfile();
@@ -204,21 +218,25 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                         fp.add(FetchProfile.Item.FLAGS);
                         fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
                         fp.add(UIDFolder.FetchProfileItem.UID);
-                        fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+                        for (String header : MessageHelper.FETCH_HEADERS)
+                            fp.add(header); // not all headers
                         fp.add(FetchProfile.Item.SIZE);
                         fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
                         ifolder.fetch(isub, fp);
+                        ContactCache.prefetch(context, isub);
 
                         try {
                             db.beginTransaction();
 
+                            Map<Long, EntityMessage> local = ServiceSynchronize.getMessagesByUid(context, folder, ifolder, isub);
+
                             for (int j = isub.length - 1; j >= 0; j--)
                                 try {
                                     long uid = ifolder.getUID(isub[j]);
                                     Log.i(Helper.TAG, "Boundary sync uid=" + uid);
-                                    EntityMessage message = db.message().getMessageByUid(fid, uid);
+                                    EntityMessage message = local.get(uid);
                                     if (message == null) {
-                                        ServiceSynchronize.synchronizeMessage(context, folder, ifolder, (IMAPMessage) isub[j], search != null);
+                                        ServiceSynchronize.synchronizeMessage(context, folder, (IMAPMessage) isub[j], search != null, uid, null);
                                         count++;
                                         loaded++;
                                     } else if (search != null) {
@@ -264,4 +282,84 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             }
         });
     }
-}
\ No newline at end of file
+
+    private void searchLocal(DB db, EntityFolder folder) {
+        // Show stored messages right away, using the full text index
+        String match = getMatch(search);
+        if (TextUtils.isEmpty(match))
+            return;
+
+        try {
+            List<Long> ids = db.message().getMessageIds(new SimpleSQLiteQuery(
+                    "SELECT message.id FROM message_fts" +
+                            " JOIN message ON message.id = message_fts.docid" +
+                            " WHERE message_fts MATCH ?" +
+                            " AND message.folder = ?" +
+                            " AND NOT message.ui_found" +
+                            " AND NOT message.ui_hide",
+                    new Object[]{match, folder.id}));
+            Log.i(Helper.TAG, "Boundary local found messages=" + ids.size());
+
+            try {
+                db.beginTransaction();
+                for (long id : ids) {
+                    existing.add(id);
+                    db.message().setMessageFound(id, true);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            loaded += ids.size();
+        } catch (Throwable ex) {
+            Log.e(Helper.TAG, "Boundary " + ex + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    private long[] skipLocal(DB db, EntityFolder folder, long[] uids) {
+        // Mark stored messages found by the server without fetching them
+        // - the full text index does not have the bodies of all messages
+        Set<Long> stored = new HashSet<>(db.message().getUids(folder.id));
+        List<Long> local = new ArrayList<>();
+        List<Long> remote = new ArrayList<>();
+        for (long uid : uids)
+            if (stored.contains(uid))
+                local.add(uid);
+            else
+                remote.add(uid);
+
+        try {
+            db.beginTransaction();
+            for (int i = 0; i < local.size(); i += LOCAL_BATCH_SIZE)
+                for (EntityMessage message : db.message().getMessagesByUid(
+                        folder.id, local.subList(i, Math.min(i + LOCAL_BATCH_SIZE, local.size()))))
+                    if (!message.ui_found) { // else found before
+                        existing.add(message.id);
+                        db.message().setMessageFound(message.id, true);
+                        loaded++;
+                    }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.i(Helper.TAG, "Boundary stored messages=" + local.size() + " remote=" + remote.size());
+
+        long[] result = new long[remote.size()];
+        for (int i = 0; i < remote.size(); i++)
+            result[i] = remote.get(i);
+        return result;
+    }
+
+    private static String getMatch(String search) {
+        // All words as prefix, which is the nearest to the substring search of IMAP
+        StringBuilder sb = new StringBuilder();
+        for (String word : search.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.length() > 0)
+                sb.append('"').append(word).append("*\" ");
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,143 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessageRemovedException;
+import javax.mail.internet.InternetAddress;
+
+import androidx.core.content.ContextCompat;
+
+// Process wide cache of contact lookups by email address
+// - addresses without a contact are cached too
+// - the cache is cleared when any contact changes
+public class ContactCache {
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final Contact NONE = new Contact();
+    private static final LruCache<String, Contact> cache = new LruCache<>(MAX_ENTRIES);
+    private static ContentObserver observer = null;
+
+    static class Contact {
+        long id;
+        String name;
+
+        String getUri() {
+            return ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, id).toString();
+        }
+    }
+
+    static Contact lookup(Context context, String email) {
+        if (email == null)
+            return null;
+
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
+                != PackageManager.PERMISSION_GRANTED)
+            return null;
+
+        observe(context);
+
+        String key = email.toLowerCase();
+        Contact contact = cache.get(key);
+        if (contact == null) {
+            contact = query(context, email);
+            cache.put(key, contact == null ? NONE : contact);
+        }
+
+        return (contact == NONE ? null : contact);
+    }
+
+    static void prefetch(Context context, Message[] imessages) {
+        // Warm the cache before a database transaction is started
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
+                != PackageManager.PERMISSION_GRANTED)
+            return;
+
+        for (Message imessage : imessages)
+            try {
+                Address[] from = imessage.getFrom();
+                if (from != null)
+                    for (Address address : from)
+                        lookup(context, ((InternetAddress) address).getAddress());
+            } catch (MessageRemovedException ignored) {
+            } catch (Throwable ex) {
+                Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    private static Contact query(Context context, String email) {
+        Cursor cursor = null;
+        try {
+            ContentResolver resolver = context.getContentResolver();
+            cursor = resolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                    new String[]{
+                            ContactsContract.CommonDataKinds.Photo.CONTACT_ID,
+                            ContactsContract.Contacts.DISPLAY_NAME
+                    },
+                    ContactsContract.CommonDataKinds.Email.ADDRESS + " = ?",
+                    new String[]{email}, null);
+            if (cursor != null && cursor.moveToNext()) {
+                int colContactId = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Photo.CONTACT_ID);
+                int colDisplayName = cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
+
+                Contact contact = new Contact();
+                contact.id = cursor.getLong(colContactId);
+                contact.name = cursor.getString(colDisplayName);
+                return contact;
+            }
+        } catch (Throwable ex) {
+            Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        return null;
+    }
+
+    private static synchronized void observe(Context context) {
+        if (observer != null)
+            return;
+
+        observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                Log.i(Helper.TAG, "Contacts changed, cached=" + cache.size());
+                cache.evictAll();
+            }
+        };
+
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, observer);
+    }
+}
@@ -45,13 +45,16 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 21,
+        version = 31,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
                 EntityFolder.class,
                 EntityMessage.class,
                 EntityAttachment.class,
+                EntityThread.class,
+                EntityFolderThread.class,
+                EntityFolderCount.class,
                 EntityOperation.class,
                 EntityAnswer.class,
                 EntityLog.class
@@ -111,6 +114,15 @@ public abstract class DB extends RoomDatabase {
     private static DB migrate(RoomDatabase.Builder<DB> builder) {
         return builder
                 .addCallback(new Callback() {
+                    @Override
+                    public void onCreate(SupportSQLiteDatabase db) {
+                        createThreadTriggers(db);
+                        createAttachmentTriggers(db);
+                        createCountTriggers(db);
+                        createSearchTriggers(db);
+                        super.onCreate(db);
+                    }
+
                     @Override
                     public void onOpen(SupportSQLiteDatabase db) {
                         Log.i(Helper.TAG, "Database version=" + db.getVersion());
@@ -265,9 +277,315 @@ public abstract class DB extends RoomDatabase {
                         db.execSQL("CREATE INDEX `index_message_ui_ignored` ON `message` (`ui_ignored`)");
                     }
                 })
+                .addMigrations(new Migration(21, 22) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `uidv` INTEGER");
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `modseq` INTEGER");
+                    }
+                })
+                .addMigrations(new Migration(22, 23) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `uidnext` INTEGER");
+                    }
+                })
+                .addMigrations(new Migration(23, 24) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `preview` TEXT");
+                    }
+                })
+                .addMigrations(new Migration(24, 25) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `attachment` ADD COLUMN `section` TEXT");
+                        db.execSQL("ALTER TABLE `attachment` ADD COLUMN `encoding` TEXT");
+                    }
+                })
+                .addMigrations(new Migration(25, 26) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread`" +
+                                " (`account` INTEGER NOT NULL, `thread` TEXT NOT NULL" +
+                                ", `messages` INTEGER NOT NULL, `unseen` INTEGER NOT NULL, `unflagged` INTEGER NOT NULL" +
+                                ", `unified` INTEGER, `received` INTEGER, `sent` INTEGER, `ui_seen` INTEGER, `ui_flagged` INTEGER" +
+                                ", PRIMARY KEY(`account`, `thread`))");
+                        db.execSQL("CREATE INDEX `index_thread_unified` ON `thread` (`unified`)");
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `folder_thread`" +
+                                " (`folder` INTEGER NOT NULL, `thread` TEXT NOT NULL, `account` INTEGER, `message` INTEGER NOT NULL" +
+                                ", `messages` INTEGER NOT NULL, `unseen` INTEGER NOT NULL, `flagged` INTEGER NOT NULL" +
+                                ", `received` INTEGER NOT NULL, `sent` INTEGER, `ui_seen` INTEGER NOT NULL, `ui_flagged` INTEGER NOT NULL" +
+                                ", PRIMARY KEY(`folder`, `thread`))");
+                        db.execSQL("CREATE INDEX `index_folder_thread_folder_received` ON `folder_thread` (`folder`, `received`)");
+                        createThreadTriggers(db);
+                        db.execSQL(insertThreads("1"));
+                        db.execSQL(insertFolderThreads("1"));
+                    }
+                })
+                .addMigrations(new Migration(26, 27) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `attachments` INTEGER NOT NULL DEFAULT 0");
+                        createAttachmentTriggers(db);
+                        db.execSQL("UPDATE message SET attachments =" +
+                                " (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id)");
+                    }
+                })
+                .addMigrations(new Migration(27, 28) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `folder_count`" +
+                                " (`folder` INTEGER NOT NULL, `messages` INTEGER NOT NULL" +
+                                ", `content` INTEGER NOT NULL, `unseen` INTEGER NOT NULL" +
+                                ", PRIMARY KEY(`folder`))");
+                        createCountTriggers(db);
+                        db.execSQL("INSERT INTO folder_count (folder, messages, content, unseen)" +
+                                " SELECT folder.id, COUNT(message.id)" + // no message row for empty folders
+                                ", COALESCE(SUM(CASE WHEN message.id IS NOT NULL AND message.content THEN 1 ELSE 0 END), 0)" +
+                                ", COALESCE(SUM(CASE WHEN message.id IS NOT NULL AND NOT message.ui_seen THEN 1 ELSE 0 END), 0)" +
+                                " FROM folder" +
+                                " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
+                                " GROUP BY folder.id");
+                    }
+                })
+                .addMigrations(new Migration(28, 29) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("DROP INDEX `index_thread_unified`");
+                        db.execSQL("CREATE INDEX `index_thread_received_unified` ON `thread` (`received`, `unified`)");
+                        db.execSQL("DROP INDEX `index_folder_thread_folder_received`");
+                        db.execSQL("CREATE INDEX `index_folder_thread_folder_received_message` ON `folder_thread` (`folder`, `received`, `message`)");
+                    }
+                })
+                .addMigrations(new Migration(29, 30) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        createSearchTriggers(db);
+                        // Existing messages are indexed by subject and addresses only, the server will find the others
+                        db.execSQL("INSERT INTO message_fts (docid, subject, address, text)" +
+                                " SELECT id, COALESCE(subject, ''), '', '' FROM message");
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, `from`, `to` FROM message");
+                            while (cursor.moveToNext())
+                                db.execSQL("UPDATE message_fts SET address = ? WHERE docid = ?",
+                                        new Object[]{EntityMessage.getSearchAddress(
+                                                Converters.decodeAddresses(cursor.getString(1)),
+                                                Converters.decodeAddresses(cursor.getString(2))),
+                                                cursor.getLong(0)});
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                    }
+                })
+                .addMigrations(new Migration(30, 31) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("DROP TRIGGER IF EXISTS thread_insert");
+                        createThreadTriggers(db);
+                    }
+                })
                 .build();
     }
 
+    // Thread summaries are maintained by triggers, because messages are changed in many ways,
+    // including by cascading deletes of folders and accounts
+    // - a summary is recalculated from the messages of the thread only
+
+    private static final String SPECIAL = "f.type IN (" + DaoMessage.SPECIAL_FOLDERS + ")";
+
+    private static String threadKey(String alias) {
+        // Messages without thread (compose) are threads of their own
+        return "COALESCE(" + alias + ".thread, CAST(" + alias + ".id AS TEXT))";
+    }
+
+    private static String inThread(String row) {
+        return "(m.thread = " + row + ".thread" +
+                " OR (" + row + ".thread IS NULL AND m.thread IS NULL AND m.id = " + row + ".id))";
+    }
+
+    private static String insertThreads(String where) {
+        return "INSERT INTO thread" +
+                " (account, thread, messages, unseen, unflagged, unified, received, sent, ui_seen, ui_flagged)" +
+                " SELECT s.account, s.thread, s.messages, s.unseen, s.unflagged" +
+                ", s.unified, u.received, u.sent, u.ui_seen, u.ui_flagged" +
+                " FROM (SELECT m.account AS account, " + threadKey("m") + " AS thread" +
+                "  , COUNT(m.id) AS messages" +
+                "  , SUM(CASE WHEN m.ui_seen OR " + SPECIAL + " THEN 0 ELSE 1 END) AS unseen" +
+                "  , SUM(CASE WHEN m.ui_flagged AND NOT " + SPECIAL + " THEN 0 ELSE 1 END) AS unflagged" +
+                "  , MAX(CASE WHEN f.unified THEN m.id ELSE NULL END) AS unified" +
+                "  FROM message m" +
+                "  JOIN folder f ON f.id = m.folder" +
+                "  WHERE NOT m.account IS NULL AND NOT m.ui_hide AND " + where +
+                "  GROUP BY m.account, " + threadKey("m") + ") s" +
+                " LEFT JOIN message u ON u.id = s.unified";
+    }
+
+    private static String insertFolderThreads(String where) {
+        return "INSERT INTO folder_thread" +
+                " (folder, thread, account, message, messages, unseen, flagged, received, sent, ui_seen, ui_flagged)" +
+                " SELECT s.folder, s.thread, r.account, s.message, s.messages, s.unseen, s.flagged" +
+                ", r.received, r.sent, r.ui_seen, r.ui_flagged" +
+                " FROM (SELECT m.folder AS folder, " + threadKey("m") + " AS thread" +
+                "  , MAX(m.id) AS message" +
+                "  , COUNT(m.id) AS messages" +
+                "  , SUM(CASE WHEN m.ui_seen THEN 0 ELSE 1 END) AS unseen" +
+                "  , SUM(CASE WHEN m.ui_flagged THEN 1 ELSE 0 END) AS flagged" +
+                "  FROM message m" +
+                "  WHERE NOT m.ui_hide AND " + where +
+                "  GROUP BY m.folder, " + threadKey("m") + ") s" +
+                " JOIN message r ON r.id = s.message";
+    }
+
+    private static String refreshThreads(String row) {
+        return "DELETE FROM thread WHERE account = " + row + ".account AND thread = " + threadKey(row) + ";" +
+                " " + insertThreads("m.account = " + row + ".account AND " + inThread(row)) + ";" +
+                " DELETE FROM folder_thread WHERE folder = " + row + ".folder AND thread = " + threadKey(row) + ";" +
+                " " + insertFolderThreads("m.folder = " + row + ".folder AND " + inThread(row)) + ";";
+    }
+
+    private static String addThreads(String row) {
+        // A new message changes the summaries of its thread incrementally
+        // - the thread is inserted when this is the first visible message
+        String key = threadKey(row);
+        String special = "(SELECT " + SPECIAL + " FROM folder f WHERE f.id = " + row + ".folder)";
+        String unified = "(SELECT f.unified FROM folder f WHERE f.id = " + row + ".folder)" +
+                " AND " + row + ".id > COALESCE(unified, 0)";
+        String latest = row + ".id > message";
+        return "UPDATE thread SET messages = messages + 1" +
+                ", unseen = unseen + CASE WHEN " + row + ".ui_seen OR " + special + " THEN 0 ELSE 1 END" +
+                ", unflagged = unflagged + CASE WHEN " + row + ".ui_flagged AND NOT " + special + " THEN 0 ELSE 1 END" +
+                ", received = CASE WHEN " + unified + " THEN " + row + ".received ELSE received END" +
+                ", sent = CASE WHEN " + unified + " THEN " + row + ".sent ELSE sent END" +
+                ", ui_seen = CASE WHEN " + unified + " THEN " + row + ".ui_seen ELSE ui_seen END" +
+                ", ui_flagged = CASE WHEN " + unified + " THEN " + row + ".ui_flagged ELSE ui_flagged END" +
+                ", unified = CASE WHEN " + unified + " THEN " + row + ".id ELSE unified END" +
+                " WHERE account = " + row + ".account AND thread = " + key + ";" +
+                " " + insertThreads("m.id = " + row + ".id AND NOT EXISTS (SELECT t.thread FROM thread t" +
+                " WHERE t.account = " + row + ".account AND t.thread = " + key + ")") + ";" +
+                " UPDATE folder_thread SET messages = messages + 1" +
+                ", unseen = unseen + CASE WHEN " + row + ".ui_seen THEN 0 ELSE 1 END" +
+                ", flagged = flagged + CASE WHEN " + row + ".ui_flagged THEN 1 ELSE 0 END" +
+                ", account = CASE WHEN " + latest + " THEN " + row + ".account ELSE account END" +
+                ", received = CASE WHEN " + latest + " THEN " + row + ".received ELSE received END" +
+                ", sent = CASE WHEN " + latest + " THEN " + row + ".sent ELSE sent END" +
+                ", ui_seen = CASE WHEN " + latest + " THEN " + row + ".ui_seen ELSE ui_seen END" +
+                ", ui_flagged = CASE WHEN " + latest + " THEN " + row + ".ui_flagged ELSE ui_flagged END" +
+                ", message = CASE WHEN " + latest + " THEN " + row + ".id ELSE message END" +
+                " WHERE folder = " + row + ".folder AND thread = " + key + ";" +
+                " " + insertFolderThreads("m.id = " + row + ".id AND NOT EXISTS (SELECT t.thread FROM folder_thread t" +
+                " WHERE t.folder = " + row + ".folder AND t.thread = " + key + ")") + ";";
+    }
+
+    private static void createSearchTriggers(SupportSQLiteDatabase db) {
+        // Not a Room entity, because Room does not know FTS tables
+        // - the docid is the message id
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS message_fts USING fts4(subject, address, text)");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_fts_delete AFTER DELETE ON message" +
+                " BEGIN DELETE FROM message_fts WHERE docid = OLD.id; END");
+    }
+
+    private static String count(String row, String sign) {
+        return "UPDATE folder_count SET messages = messages " + sign + " 1" +
+                ", content = content " + sign + " " + row + ".content" +
+                ", unseen = unseen " + sign + " NOT " + row + ".ui_seen" +
+                " WHERE folder = " + row + ".folder AND NOT " + row + ".ui_hide;";
+    }
+
+    private static void createCountTriggers(SupportSQLiteDatabase db) {
+        // Folder counts are changed incrementally
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_insert AFTER INSERT ON folder" +
+                " BEGIN INSERT OR IGNORE INTO folder_count (folder, messages, content, unseen)" +
+                " VALUES (NEW.id, 0, 0, 0); END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_delete AFTER DELETE ON folder" +
+                " BEGIN DELETE FROM folder_count WHERE folder = OLD.id; END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_insert AFTER INSERT ON message" +
+                " BEGIN " + count("NEW", "+") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_delete AFTER DELETE ON message" +
+                " BEGIN " + count("OLD", "-") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_update" +
+                " AFTER UPDATE OF folder, content, ui_seen, ui_hide ON message" +
+                " WHEN OLD.folder IS NOT NEW.folder OR OLD.content IS NOT NEW.content" +
+                " OR OLD.ui_seen IS NOT NEW.ui_seen OR OLD.ui_hide IS NOT NEW.ui_hide" +
+                " BEGIN " + count("OLD", "-") + " " + count("NEW", "+") + " END");
+    }
+
+    private static void createAttachmentTriggers(SupportSQLiteDatabase db) {
+        // The number of attachments is recounted, because messages are updated as a whole
+        // - a message read before attachments were added would reset the number
+        String count = "(SELECT COUNT(a.id) FROM attachment a WHERE a.message = %1$s)";
+        String update = "UPDATE message SET attachments = " + count + " WHERE id = %1$s;";
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_insert AFTER INSERT ON attachment" +
+                " BEGIN " + String.format(update, "NEW.message") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_delete AFTER DELETE ON attachment" +
+                " BEGIN " + String.format(update, "OLD.message") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_update AFTER UPDATE OF message ON attachment" +
+                " WHEN OLD.message IS NOT NEW.message" +
+                " BEGIN " + String.format(update, "OLD.message") + " " + String.format(update, "NEW.message") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_attachments AFTER UPDATE OF attachments ON message" +
+                " WHEN NEW.attachments IS NOT " + String.format(count, "NEW.id") +
+                " BEGIN " + String.format(update, "NEW.id") + " END");
+
+        // Attachments can only be added after the message
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_insert_attachments AFTER INSERT ON message" +
+                " WHEN NEW.attachments <> 0" +
+                " BEGIN UPDATE message SET attachments = 0 WHERE id = NEW.id; END");
+    }
+
+    private static void createThreadTriggers(SupportSQLiteDatabase db) {
+        // Synchronizing inserts many messages, so these are added without recalculating the thread
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_insert AFTER INSERT ON message" +
+                " WHEN NOT NEW.ui_hide" +
+                " BEGIN " + addThreads("NEW") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_delete AFTER DELETE ON message" +
+                " BEGIN " + refreshThreads("OLD") + " END");
+
+        String columns = "account, folder, thread, received, sent, ui_seen, ui_flagged, ui_hide";
+        List<String> changed = new ArrayList<>();
+        for (String column : columns.split(", "))
+            changed.add("OLD." + column + " IS NOT NEW." + column);
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_update AFTER UPDATE OF " + columns + " ON message" +
+                " WHEN " + TextUtils.join(" OR ", changed) +
+                " BEGIN " + refreshThreads("NEW") + " END");
+
+        // Moved to another thread or folder
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_update_old AFTER UPDATE OF account, folder, thread ON message" +
+                " WHEN OLD.account IS NOT NEW.account OR OLD.folder IS NOT NEW.folder OR OLD.thread IS NOT NEW.thread" +
+                " BEGIN " + refreshThreads("OLD") + " END");
+
+        // Counts and unified messages depend on the folder type
+        String threads = "(SELECT " + threadKey("x") + " FROM message x WHERE x.folder = NEW.id)";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_folder_update AFTER UPDATE OF type, unified ON folder" +
+                " WHEN OLD.type IS NOT NEW.type OR OLD.unified IS NOT NEW.unified" +
+                " BEGIN" +
+                " DELETE FROM thread WHERE thread IN " + threads + ";" +
+                " " + insertThreads(threadKey("m") + " IN " + threads) + ";" +
+                " END");
+    }
+
     public static class Converters {
         @TypeConverter
         public static String[] fromStringArray(String value) {
@@ -56,17 +56,18 @@ public interface DaoAccount {
     @Query("SELECT * FROM account WHERE id = :id")
     LiveData<EntityAccount> liveAccount(long id);
 
+    // Not using the message table, which changes continuously while synchronizing
+    // - operations in the outbox are sends, which are processed for any account
+    // - sent messages are marked seen
     @Query("SELECT" +
             " (SELECT COUNT(account.id) FROM account WHERE synchronize) AS accounts" +
             ", (SELECT COUNT(operation.id) FROM operation" +
-            "     JOIN message ON message.id = operation.message" +
-            "     JOIN account ON account.id = message.account" +
-            "     WHERE synchronize) AS operations" +
-            ", (SELECT COUNT(message.id) FROM message" +
-            "     JOIN folder ON folder.id = message.folder" +
-            "     JOIN operation ON operation.message = message.id AND operation.name = '" + EntityOperation.SEND + "'" +
-            "     WHERE NOT message.ui_seen" +
-            "     AND folder.type = '" + EntityFolder.OUTBOX + "') AS unsent")
+            "     JOIN folder ON folder.id = operation.folder" +
+            "     LEFT JOIN account ON account.id = folder.account" +
+            "     WHERE account.synchronize OR folder.account IS NULL) AS operations" +
+            ", (SELECT COALESCE(SUM(folder_count.unseen), 0) FROM folder_count" +
+            "     JOIN folder ON folder.id = folder_count.folder" +
+            "     WHERE folder.type = '" + EntityFolder.OUTBOX + "') AS unsent")
     LiveData<TupleAccountStats> liveStats();
 
     @Insert
@@ -44,39 +44,34 @@ public interface DaoFolder {
             " AND type = '" + EntityFolder.USER + "'")
     List<EntityFolder> getUserFolders(long account);
 
+    // Message counts are maintained by database triggers, see DB.createCountTriggers
+
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.content = 1 THEN 1 ELSE 0 END) AS content" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
+            ", folder_count.messages, folder_count.content, folder_count.unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " WHERE folder.account = :account OR folder.account IS NULL" +
-            " GROUP BY folder.id")
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
+            " WHERE folder.account = :account OR folder.account IS NULL")
     LiveData<List<TupleFolderEx>> liveFolders(long account);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.content = 1 THEN 1 ELSE 0 END) AS content" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
+            ", folder_count.messages, folder_count.content, folder_count.unseen" +
             " FROM folder" +
             " JOIN account ON account.id = folder.account" +
-            " JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
+            " JOIN folder_count ON folder_count.folder = folder.id" +
             " WHERE account.`synchronize`" +
             " AND folder.unified" +
-            " GROUP BY folder.id")
+            " AND folder_count.messages > 0")
     LiveData<List<TupleFolderEx>> liveUnified();
 
     @Query("SELECT folder.* FROM folder WHERE folder.id = :id")
     LiveData<EntityFolder> liveFolder(long id);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.content = 1 THEN 1 ELSE 0 END) AS content" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
+            ", folder_count.messages, folder_count.content, folder_count.unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
             " WHERE folder.id = :id")
     LiveData<TupleFolderEx> liveFolderEx(long id);
 
@@ -108,6 +103,15 @@ public interface DaoFolder {
     @Query("UPDATE folder SET error = :error WHERE id = :id")
     int setFolderError(long id, String error);
 
+    @Query("UPDATE folder SET uidv = :uidv WHERE id = :id")
+    int setFolderUidValidity(long id, Long uidv);
+
+    @Query("UPDATE folder SET modseq = :modseq WHERE id = :id")
+    int setFolderModSeq(long id, Long modseq);
+
+    @Query("UPDATE folder SET uidnext = :uidnext WHERE id = :id")
+    int setFolderUidNext(long id, Long uidnext);
+
     @Query("UPDATE folder SET type = :type WHERE id = :id")
     int setFolderType(long id, String type);
 
@@ -124,6 +128,7 @@ public interface DaoFolder {
             ", synchronize = :synchronize" +
             ", unified = :unified" +
             ", `after` = :after" +
+            ", modseq = CASE WHEN `after` = :after THEN modseq ELSE NULL END" + // resynchronize window
             " WHERE id = :id")
     int setFolderProperties(long id, String name, String display, boolean hide, boolean synchronize, boolean unified, int after);
 
@@ -26,10 +26,14 @@ import androidx.paging.DataSource;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.RawQuery;
 import androidx.room.Update;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
 @Dao
 public interface DaoMessage {
+    String SPECIAL_FOLDERS =
+            "'" + EntityFolder.ARCHIVE + "', '" + EntityFolder.OUTBOX + "', '" + EntityFolder.DRAFTS + "'";
 
     // About 'dummy': "When the min() or max() aggregate functions are used in an aggregate query,
     // all bare columns in the result set take values from the input row which also contains the minimum or maximum."
@@ -47,7 +51,6 @@ public interface DaoMessage {
             "    AND NOT folder.type = '" + EntityFolder.ARCHIVE + "'" +
             "    AND NOT folder.type = '" + EntityFolder.OUTBOX + "'" +
             "    AND NOT folder.type = '" + EntityFolder.DRAFTS + "' THEN 0 ELSE 1 END) AS unflagged" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
             ", MAX(CASE WHEN folder.unified THEN message.id ELSE 0 END) AS dummy" +
             " FROM message" +
             " JOIN account ON account.id = message.account" +
@@ -75,7 +78,6 @@ public interface DaoMessage {
             "    AND NOT (folder.id <> :folder AND folder.type = '" + EntityFolder.ARCHIVE + "')" +
             "    AND NOT (folder.id <> :folder AND folder.type = '" + EntityFolder.OUTBOX + "')" +
             "    AND NOT (folder.id <> :folder AND folder.type = '" + EntityFolder.DRAFTS + "') THEN 0 ELSE 1 END) AS unflagged" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
             ", MAX(CASE WHEN folder.id = :folder THEN message.id ELSE 0 END) AS dummy" +
             " FROM message" +
             " JOIN account ON account.id = message.account" +
@@ -93,13 +95,51 @@ public interface DaoMessage {
             " END DESC, message.received DESC, message.sent DESC")
     DataSource.Factory<Integer, TupleMessageEx> pagedFolder(long folder, String sort, boolean found, boolean debug);
 
+    // Thread summaries, see DB.createThreadTriggers and DataSourceMessages
+    // - hidden messages are not included
+
+    String UNIFIED_THREADS = "SELECT message.*" +
+            ", account.name AS accountName, account.color AS accountColor" +
+            ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType" +
+            ", thread.messages AS count, thread.unseen, thread.unflagged" +
+            " FROM thread" +
+            " JOIN account ON account.id = thread.account" +
+            " JOIN message ON message.id = thread.unified" +
+            " JOIN folder ON folder.id = message.folder" +
+            " WHERE account.`synchronize`";
+
+    // The outbox has no account: counts are of the outbox only
+    // Messages in the archive, outbox and drafts count as unseen and unflagged in their own folder only
+    String FOLDER_THREADS = "SELECT message.*" +
+            ", account.name AS accountName, account.color AS accountColor" +
+            ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType" +
+            ", CASE WHEN folder.account IS NULL THEN folder_thread.messages" +
+            "  ELSE thread.messages END AS count" +
+            ", CASE WHEN folder.account IS NULL THEN folder_thread.unseen" +
+            "  WHEN folder.type IN (" + SPECIAL_FOLDERS + ") THEN thread.unseen + folder_thread.unseen" +
+            "  ELSE thread.unseen END AS unseen" +
+            ", CASE WHEN folder.account IS NULL THEN folder_thread.messages - folder_thread.flagged" +
+            "  WHEN folder.type IN (" + SPECIAL_FOLDERS + ") THEN thread.unflagged - folder_thread.flagged" +
+            "  ELSE thread.unflagged END AS unflagged" +
+            " FROM folder_thread" +
+            " JOIN message ON message.id = folder_thread.message" +
+            " JOIN account ON account.id = message.account" +
+            " JOIN folder ON folder.id = folder_thread.folder" +
+            " LEFT JOIN thread ON thread.account = folder_thread.account AND thread.thread = folder_thread.thread" +
+            " WHERE folder_thread.folder = ?";
+
+    @RawQuery
+    List<TupleMessageEx> getThreads(SupportSQLiteQuery query);
+
+    @RawQuery
+    List<Long> getMessageIds(SupportSQLiteQuery query);
+
     @Query("SELECT message.*" +
             ", account.name AS accountName, account.color AS accountColor" +
             ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType" +
             ", (SELECT COUNT(m1.id) FROM message m1 WHERE m1.account = message.account AND m1.thread = message.thread AND NOT m1.ui_hide) AS count" +
             ", CASE WHEN message.ui_seen THEN 0 ELSE 1 END AS unseen" +
             ", CASE WHEN message.ui_flagged THEN 0 ELSE 1 END AS unflagged" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
             " FROM message" +
             " JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
@@ -129,6 +169,12 @@ public interface DaoMessage {
             " AND uid = :uid")
     EntityMessage getMessageByUid(long folder, long uid);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid IN (:uids)")
+    List<EntityMessage> getMessagesByUid(long folder, List<Long> uids);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE folder = :folder")
@@ -153,7 +199,6 @@ public interface DaoMessage {
             ", (SELECT COUNT(m1.id) FROM message m1 WHERE m1.account = message.account AND m1.thread = message.thread AND NOT m1.ui_hide) AS count" +
             ", CASE WHEN message.ui_seen THEN 0 ELSE 1 END AS unseen" +
             ", CASE WHEN message.ui_flagged THEN 0 ELSE 1 END AS unflagged" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
             " FROM message" +
             " JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
@@ -171,11 +216,17 @@ public interface DaoMessage {
             " ORDER BY message.received")
     LiveData<List<EntityMessage>> liveUnseenUnified();
 
+    @Query("SELECT uid FROM message" +
+            " WHERE folder = :folder" +
+            " AND NOT uid IS NULL")
+    List<Long> getUids(long folder);
+
     @Query("SELECT uid FROM message" +
             " WHERE folder = :folder" +
             " AND received >= :received" +
             " AND NOT uid IS NULL" +
-            " AND NOT ui_found" /* keep found messages */)
+            " AND NOT ui_found" /* keep found messages */ +
+            " ORDER BY uid")
     List<Long> getUids(long folder, long received);
 
     @Insert
@@ -214,6 +265,9 @@ public interface DaoMessage {
     @Query("UPDATE message SET content = :content WHERE id = :id")
     int setMessageContent(long id, boolean content);
 
+    @Query("UPDATE message SET preview = :preview WHERE id = :id")
+    int setMessagePreview(long id, String preview);
+
     @Query("UPDATE message SET headers = :headers WHERE id = :id")
     int setMessageHeaders(long id, String headers);
 
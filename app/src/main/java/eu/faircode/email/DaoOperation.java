@@ -45,4 +45,11 @@ public interface DaoOperation {
 
     @Query("DELETE FROM operation WHERE id = :id")
     void deleteOperation(long id);
+
+    // Only operations queued after the last pending move or delete of the message
+    @Query("DELETE FROM operation WHERE folder = :folder AND message = :message AND name IN (:names)" +
+            " AND id > (SELECT COALESCE(MAX(id), 0) FROM operation" +
+            "  WHERE folder = :folder AND message = :message" +
+            "  AND name IN ('" + EntityOperation.MOVE + "', '" + EntityOperation.DELETE + "'))")
+    int deleteOperations(long folder, long message, String... names);
 }
@@ -0,0 +1,200 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.annotation.SuppressLint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.paging.DataSource;
+import androidx.paging.ItemKeyedDataSource;
+import androidx.room.InvalidationTracker;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+
+// Pages of thread summaries, seeking from the last item of the previous page
+// - unlike offsets, the rows before a page are not read
+// - the order is fully determined by the message id, which is the last sort column
+public class DataSourceMessages extends ItemKeyedDataSource<DataSourceMessages.Key, TupleMessageEx> {
+    private DB db;
+    private Long folder; // null = unified inbox
+    private String sort;
+    private InvalidationTracker.Observer observer;
+
+    static class Key {
+        private long order; // seen or flagged, depending on the sort order
+        private long received;
+        private long id;
+
+        Key(long order, long received, long id) {
+            this.order = order;
+            this.received = received;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return order + "/" + received + "/" + id;
+        }
+    }
+
+    static class Factory extends DataSource.Factory<Key, TupleMessageEx> {
+        private DB db;
+        private Long folder;
+        private String sort;
+
+        Factory(DB db, Long folder, String sort) {
+            this.db = db;
+            this.folder = folder;
+            this.sort = sort;
+        }
+
+        @Override
+        public DataSource<Key, TupleMessageEx> create() {
+            return new DataSourceMessages(db, folder, sort);
+        }
+    }
+
+    @SuppressLint("RestrictedApi")
+    private DataSourceMessages(DB db, Long folder, String sort) {
+        this.db = db;
+        this.folder = folder;
+        this.sort = sort;
+
+        this.observer = new InvalidationTracker.Observer(
+                EntityMessage.TABLE_NAME, EntityAccount.TABLE_NAME, EntityFolder.TABLE_NAME,
+                EntityThread.TABLE_NAME, EntityFolderThread.TABLE_NAME) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                invalidate();
+            }
+        };
+
+        // Like Room's generated data sources: a discarded data source is not kept registered
+        // - the observer is referenced by this data source only and removed when it is collected
+        db.getInvalidationTracker().addWeakObserver(observer);
+    }
+
+    @NonNull
+    @Override
+    public Key getKey(@NonNull TupleMessageEx message) {
+        // The summary has the same values as the latest message
+        long order;
+        if ("unread".equals(sort))
+            order = (message.ui_seen ? 1 : 0);
+        else if ("starred".equals(sort))
+            order = (message.ui_flagged ? 1 : 0);
+        else
+            order = 0;
+        return new Key(order, message.received, message.id);
+    }
+
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<TupleMessageEx> callback) {
+        List<TupleMessageEx> result = new ArrayList<>();
+
+        Key key = params.requestedInitialKey;
+        if (key == null)
+            result.addAll(load(null, params.requestedLoadSize, false));
+        else {
+            // Reload around the last seen item to keep the scroll position
+            result.addAll(load(key, params.requestedLoadSize / 2, true));
+            Key from = new Key(key.order, key.received, key.id + 1); // including the key itself
+            result.addAll(load(from, params.requestedLoadSize - result.size(), false));
+        }
+
+        callback.onResult(result);
+    }
+
+    @Override
+    public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        callback.onResult(load(params.key, params.requestedLoadSize, false));
+    }
+
+    @Override
+    public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        callback.onResult(load(params.key, params.requestedLoadSize, true));
+    }
+
+    private List<TupleMessageEx> load(Key key, int count, boolean before) {
+        String table = (folder == null ? "thread" : "folder_thread");
+        String id = table + (folder == null ? ".unified" : ".message");
+        String received = table + ".received";
+
+        // Optional first sort column
+        String order = null;
+        boolean descending = true;
+        if ("unread".equals(sort)) {
+            order = table + ".ui_seen";
+            descending = false;
+        } else if ("starred".equals(sort))
+            order = table + ".ui_flagged";
+
+        List<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder(folder == null ? DaoMessage.UNIFIED_THREADS : DaoMessage.FOLDER_THREADS);
+        if (folder != null)
+            args.add(folder);
+
+        if (key != null) {
+            // Rows beyond the key in list order, or before the key in reverse order
+            String beyond = (before ? " > ?" : " < ?"); // for descending columns
+            String within = (before ? " >= ?" : " <= ?");
+
+            sql.append(" AND (");
+            if (order == null) {
+                // Range of the index
+                sql.append(received).append(within).append(" AND ");
+                args.add(key.received);
+            } else {
+                String op = (descending ? beyond : (before ? " < ?" : " > ?"));
+                sql.append(order).append(op).append(" OR (").append(order).append(" = ? AND ");
+                args.add(key.order);
+                args.add(key.order);
+            }
+
+            sql.append("(").append(received).append(beyond)
+                    .append(" OR (").append(received).append(" = ? AND ").append(id).append(beyond).append("))");
+            args.add(key.received);
+            args.add(key.received);
+            args.add(key.id);
+
+            if (order != null)
+                sql.append(")");
+            sql.append(")");
+        }
+
+        String asc = (before ? " DESC" : " ASC");
+        String desc = (before ? " ASC" : " DESC");
+        sql.append(" ORDER BY ");
+        if (order != null)
+            sql.append(order).append(descending ? desc : asc).append(", ");
+        sql.append(received).append(desc).append(", ").append(id).append(desc);
+        sql.append(" LIMIT ?");
+        args.add(count);
+
+        List<TupleMessageEx> result = db.message().getThreads(new SimpleSQLiteQuery(sql.toString(), args.toArray()));
+        if (before)
+            Collections.reverse(result);
+        return result;
+    }
+}
@@ -67,6 +67,8 @@ public class EntityAttachment {
     public String type;
     public String cid; // Content-ID
     public Integer size;
+    public String section; // IMAP body section, like 2.1
+    public String encoding; // Content-Transfer-Encoding
 
     public Integer progress;
     @NonNull
@@ -82,17 +84,19 @@ public class EntityAttachment {
     }
 
     void download(Context context, DB db) throws MessagingException, IOException {
+        download(context, db, this.part.getInputStream());
+    }
+
+    void download(Context context, DB db, InputStream is) throws IOException {
         // Build filename
         File file = EntityAttachment.getFile(context, this.id);
 
         // Download attachment
-        InputStream is = null;
         OutputStream os = null;
         try {
             this.progress = null;
             db.attachment().updateAttachment(this);
 
-            is = this.part.getInputStream();
             os = new BufferedOutputStream(new FileOutputStream(file));
 
             int size = 0;
@@ -120,8 +124,7 @@ public class EntityAttachment {
             throw ex;
         } finally {
             try {
-                if (is != null)
-                    is.close();
+                is.close();
             } finally {
                 if (os != null)
                     os.close();
@@ -68,6 +68,9 @@ public class EntityFolder implements Serializable {
     public Boolean hide = false;
     @NonNull
     public Boolean unified = false;
+    public Long uidv; // UIDVALIDITY
+    public Long modseq; // HIGHESTMODSEQ
+    public Long uidnext; // UIDNEXT
     public String state;
     public String error;
 
@@ -139,6 +142,9 @@ public class EntityFolder implements Serializable {
                     (this.display == null ? other.display == null : this.display.equals(other.display)) &&
                     this.hide == other.hide &&
                     this.unified == other.unified &&
+                    (this.uidv == null ? other.uidv == null : this.uidv.equals(other.uidv)) &&
+                    (this.modseq == null ? other.modseq == null : this.modseq.equals(other.modseq)) &&
+                    (this.uidnext == null ? other.uidnext == null : this.uidnext.equals(other.uidnext)) &&
                     (this.state == null ? other.state == null : this.state.equals(other.state)) &&
                     (this.error == null ? other.error == null : this.error.equals(other.error)));
         } else
@@ -0,0 +1,42 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+// Number of messages in a folder, maintained by database triggers
+// - hidden messages are not counted
+@Entity(tableName = EntityFolderCount.TABLE_NAME)
+public class EntityFolderCount {
+    static final String TABLE_NAME = "folder_count";
+
+    @PrimaryKey
+    @NonNull
+    public Long folder;
+    @NonNull
+    public Integer messages;
+    @NonNull
+    public Integer content;
+    @NonNull
+    public Integer unseen;
+}
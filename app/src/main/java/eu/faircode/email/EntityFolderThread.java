@@ -0,0 +1,58 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+// Summary of a thread in a folder, maintained by database triggers
+@Entity(
+        tableName = EntityFolderThread.TABLE_NAME,
+        primaryKeys = {"folder", "thread"},
+        indices = {
+                @Index(value = {"folder", "received", "message"})
+        }
+)
+public class EntityFolderThread {
+    static final String TABLE_NAME = "folder_thread";
+
+    @NonNull
+    public Long folder;
+    @NonNull
+    public String thread; // message id if there is no thread
+    public Long account;
+    @NonNull
+    public Long message; // latest message in the folder
+    @NonNull
+    public Integer messages;
+    @NonNull
+    public Integer unseen;
+    @NonNull
+    public Integer flagged;
+    @NonNull
+    public Long received; // of latest message
+    public Long sent;
+    @NonNull
+    public Boolean ui_seen;
+    @NonNull
+    public Boolean ui_flagged;
+}
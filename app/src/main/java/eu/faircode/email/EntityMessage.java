@@ -25,14 +25,18 @@ import android.util.Log;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Random;
 
 import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
 
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
@@ -40,6 +44,7 @@ import androidx.room.ForeignKey;
 import androidx.room.Ignore;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import static androidx.room.ForeignKey.CASCADE;
 
@@ -71,6 +76,8 @@ import static androidx.room.ForeignKey.CASCADE;
 public class EntityMessage implements Serializable {
     static final String TABLE_NAME = "message";
 
+    private static final int PREVIEW_READ = 16384; // characters, the head and style come first
+
     @PrimaryKey(autoGenerate = true)
     public Long id;
     public Long account; // performance
@@ -92,9 +99,12 @@ public class EntityMessage implements Serializable {
     public Address[] reply;
     public String headers;
     public String subject;
+    public String preview; // plain text
     public Integer size;
     @NonNull
     public Boolean content = false;
+    @NonNull
+    public Integer attachments = 0; // maintained by the database
     public Long sent; // compose = null
     @NonNull
     public Long received; // compose = stored
@@ -135,12 +145,19 @@ public class EntityMessage implements Serializable {
         return new File(dir, id.toString());
     }
 
+    static File getSpoolFile(Context context, Long id) {
+        File dir = new File(context.getCacheDir(), "spool");
+        dir.mkdir();
+        return new File(dir, id.toString());
+    }
+
     void write(Context context, String body) throws IOException {
+        // Same encoding as MessageHelper.writeHtml
         File file = getFile(context, id);
         BufferedWriter out = null;
         try {
             this.body = (body == null ? "" : body);
-            out = new BufferedWriter(new FileWriter(file));
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
             out.write(this.body);
         } finally {
             if (out != null)
@@ -152,17 +169,66 @@ public class EntityMessage implements Serializable {
         }
     }
 
+    void index(Context context, String html) {
+        // Full text search, see DB.createSearchTriggers
+        // - only the start of the body is indexed, downloaded bodies are not read back
+        if (html != null && html.length() > MessageHelper.INDEX_SIZE)
+            html = html.substring(0, MessageHelper.INDEX_SIZE);
+
+        SupportSQLiteDatabase db = DB.getInstance(context).getOpenHelper().getWritableDatabase();
+        db.execSQL("DELETE FROM message_fts WHERE docid = ?", new Object[]{id});
+        db.execSQL("INSERT INTO message_fts (docid, subject, address, text) VALUES (?, ?, ?, ?)",
+                new Object[]{id,
+                        subject == null ? "" : subject,
+                        getSearchAddress(from, to),
+                        html == null ? "" : HtmlHelper.getText(html)});
+    }
+
+    static String getSearchAddress(Address[] from, Address[] to) {
+        StringBuilder address = new StringBuilder();
+        for (Address[] addresses : new Address[][]{from, to})
+            if (addresses != null)
+                for (Address a : addresses) {
+                    InternetAddress ia = (InternetAddress) a;
+                    if (ia.getPersonal() != null)
+                        address.append(ia.getPersonal()).append(' ');
+                    address.append(ia.getAddress()).append(' ');
+                }
+        return address.toString().trim();
+    }
+
     String read(Context context) throws IOException {
         if (body == null)
             body = read(context, this.id);
         return body;
     }
 
+    static String getPreview(Context context, Long id) throws IOException {
+        // The start of the body is sufficient
+        File file = getFile(context, id);
+        Reader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            char[] buffer = new char[PREVIEW_READ];
+            int count = 0;
+            for (int len = in.read(buffer); len != -1 && count < buffer.length; len = in.read(buffer, count, buffer.length - count))
+                count += len;
+            return HtmlHelper.getPreview(new String(buffer, 0, count));
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                }
+        }
+    }
+
     static String read(Context context, Long id) throws IOException {
         File file = getFile(context, id);
         BufferedReader in = null;
         try {
-            in = new BufferedReader(new FileReader(file));
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
             StringBuilder body = new StringBuilder();
             String line;
             while ((line = in.readLine()) != null) {
@@ -203,8 +269,10 @@ public class EntityMessage implements Serializable {
                     equal(this.reply, other.reply) &&
                     (this.headers == null ? other.headers == null : this.headers.equals(other.headers)) &&
                     (this.subject == null ? other.subject == null : this.subject.equals(other.subject)) &&
+                    (this.preview == null ? other.preview == null : this.preview.equals(other.preview)) &&
                     (this.size == null ? other.size == null : this.size.equals(other.size)) &&
                     this.content == other.content &&
+                    this.attachments.equals(other.attachments) &&
                     (this.sent == null ? other.sent == null : this.sent.equals(other.sent)) &&
                     this.received.equals(other.received) &&
                     this.stored.equals(other.stored) &&
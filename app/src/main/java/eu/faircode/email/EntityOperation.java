@@ -25,9 +25,9 @@ import android.util.Log;
 
 import org.json.JSONArray;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -75,7 +75,7 @@ public class EntityOperation {
     public static final String ATTACHMENT = "attachment";
     public static final String FLAG = "flag";
 
-    private static List<Intent> queue = new ArrayList<>();
+    private static Map<Long, Intent> queue = new LinkedHashMap<>(); // folder id > intent
 
     static void queue(DB db, EntityMessage message, String name) {
         JSONArray jsonArray = new JSONArray();
@@ -96,6 +96,24 @@ public class EntityOperation {
     }
 
     private static void queue(DB db, EntityMessage message, String name, JSONArray jsonArray) {
+        // Collapse superseded operations
+        // - the last seen/flag state wins
+        // - adding a message (again) appends its content at the time of processing
+        // - deleting a message makes pending adds and flag changes pointless
+        // - operations before a pending move or delete are kept to keep their effect
+        // - an add which is being processed still completes, the delete will remove the appended message
+        if (SEEN.equals(name) || FLAG.equals(name) || ADD.equals(name)) {
+            int superseded = db.operation().deleteOperations(message.folder, message.id, name);
+            if (superseded > 0)
+                Log.i(Helper.TAG, "Superseded op=" + name + " msg=" + message.folder + "/" + message.id +
+                        " count=" + superseded);
+        } else if (DELETE.equals(name)) {
+            int superseded = db.operation().deleteOperations(message.folder, message.id, ADD, SEEN, FLAG);
+            if (superseded > 0)
+                Log.i(Helper.TAG, "Superseded by delete msg=" + message.folder + "/" + message.id +
+                        " count=" + superseded);
+        }
+
         EntityOperation operation = new EntityOperation();
         operation.folder = message.folder;
         operation.message = message.id;
@@ -109,8 +127,13 @@ public class EntityOperation {
         intent.setAction(ServiceSynchronize.ACTION_PROCESS_OPERATIONS);
         intent.putExtra("folder", message.folder);
 
+        // One broadcast per folder
+        // - content requested by the user is downloaded with priority
         synchronized (queue) {
-            queue.add(intent);
+            Intent previous = queue.get(message.folder);
+            intent.putExtra("urgent", BODY.equals(name) || ATTACHMENT.equals(name) || HEADERS.equals(name) ||
+                    (previous != null && previous.getBooleanExtra("urgent", false)));
+            queue.put(message.folder, intent);
         }
 
         Log.i(Helper.TAG, "Queued op=" + operation.id + "/" + operation.name +
@@ -122,7 +145,7 @@ public class EntityOperation {
         // Processing needs to be done after committing to the database
         LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(context);
         synchronized (queue) {
-            for (Intent intent : queue)
+            for (Intent intent : queue.values())
                 lbm.sendBroadcast(intent);
             queue.clear();
         }
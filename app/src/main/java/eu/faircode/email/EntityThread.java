@@ -0,0 +1,53 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+// Summary of a thread of an account, maintained by database triggers
+@Entity(
+        tableName = EntityThread.TABLE_NAME,
+        primaryKeys = {"account", "thread"},
+        indices = {
+                @Index(value = {"received", "unified"})
+        }
+)
+public class EntityThread {
+    static final String TABLE_NAME = "thread";
+
+    @NonNull
+    public Long account;
+    @NonNull
+    public String thread; // message id if there is no thread
+    @NonNull
+    public Integer messages;
+    @NonNull
+    public Integer unseen; // excluding archive, outbox and drafts
+    @NonNull
+    public Integer unflagged; // including archive, outbox and drafts
+    public Long unified; // latest message in a unified folder
+    public Long received; // of unified message
+    public Long sent;
+    public Boolean ui_seen;
+    public Boolean ui_flagged;
+}
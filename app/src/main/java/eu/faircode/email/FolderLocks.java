@@ -0,0 +1,40 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Locks of folders, created on demand
+// - operations and events of one folder are serialized, different folders run in parallel
+// - the outbox is a folder too and therefore has its own lock
+// - locks are never removed, a thread might still hold or wait for it
+public class FolderLocks {
+    private final Map<Long, Object> locks = new HashMap<>(); // folder id > lock
+
+    synchronized Object get(long folder) {
+        Object lock = locks.get(folder);
+        if (lock == null) {
+            lock = new Object();
+            locks.put(folder, lock);
+        }
+        return lock;
+    }
+}
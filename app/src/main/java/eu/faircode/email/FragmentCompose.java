@@ -962,6 +962,7 @@ public class FragmentCompose extends FragmentEx {
 
                 draft.id = db.message().insertMessage(draft);
                 draft.write(context, body == null ? "" : body);
+                draft.index(context, draft.body);
 
                 if ("new".equals(action)) {
                     ArrayList<Uri> uris = args.getParcelableArrayList("attachments");
@@ -1205,6 +1206,7 @@ public class FragmentCompose extends FragmentEx {
                 } else if (action == R.id.action_save) {
                     db.message().updateMessage(draft);
                     draft.write(context, body);
+                    draft.index(context, draft.body);
 
                     EntityOperation.queue(db, draft, EntityOperation.ADD);
 
@@ -1255,6 +1257,7 @@ public class FragmentCompose extends FragmentEx {
                     draft.ui_hide = false;
                     draft.id = db.message().insertMessage(draft);
                     draft.write(getContext(), body);
+                    draft.index(getContext(), draft.body);
 
                     // Restore attachments
                     for (EntityAttachment attachment : attachments) {
@@ -37,10 +37,8 @@ import com.google.android.material.snackbar.Snackbar;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
 
-import java.util.Properties;
 
 import javax.mail.Folder;
-import javax.mail.Session;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -135,10 +133,7 @@ public class FragmentFolder extends FragmentEx {
                             if (folder == null || !folder.name.equals(name)) {
                                 EntityAccount account = db.account().getAccount(folder == null ? aid : folder.account);
 
-                                Properties props = MessageHelper.getSessionProperties(account.auth_type);
-                                Session isession = Session.getInstance(props, null);
-                                istore = (IMAPStore) isession.getStore("imaps");
-                                Helper.connect(context, istore, account);
+                                istore = StorePool.lease(context, account);
 
                                 if (folder == null) {
                                     Log.i(Helper.TAG, "Creating folder=" + name);
@@ -180,8 +175,7 @@ public class FragmentFolder extends FragmentEx {
                         } finally {
                             db.endTransaction();
 
-                            if (istore != null)
-                                istore.close();
+                            StorePool.release(istore);
                         }
 
                         ServiceSynchronize.reload(getContext(), "save folder");
@@ -239,10 +233,7 @@ public class FragmentFolder extends FragmentEx {
                                             EntityFolder folder = db.folder().getFolder(id);
                                             EntityAccount account = db.account().getAccount(folder.account);
 
-                                            Properties props = MessageHelper.getSessionProperties(account.auth_type);
-                                            Session isession = Session.getInstance(props, null);
-                                            istore = (IMAPStore) isession.getStore("imaps");
-                                            Helper.connect(context, istore, account);
+                                            istore = StorePool.lease(context, account);
 
                                             IMAPFolder ifolder = (IMAPFolder) istore.getFolder(folder.name);
                                             ifolder.delete(false);
@@ -253,8 +244,7 @@ public class FragmentFolder extends FragmentEx {
                                         } finally {
                                             db.endTransaction();
 
-                                            if (istore != null)
-                                                istore.close();
+                                            StorePool.release(istore);
                                         }
 
                                         ServiceSynchronize.reload(getContext(), "delete folder");
@@ -759,7 +759,10 @@ public class FragmentMessages extends FragmentEx {
 
             switch (viewType) {
                 case UNIFIED:
-                    messages = new LivePagedListBuilder<>(db.message().pagedUnifiedInbox(sort, debug), LOCAL_PAGE_SIZE).build();
+                    if (debug)
+                        messages = new LivePagedListBuilder<>(db.message().pagedUnifiedInbox(sort, true), LOCAL_PAGE_SIZE).build();
+                    else
+                        messages = new LivePagedListBuilder<>(new DataSourceMessages.Factory(db, null, sort), LOCAL_PAGE_SIZE).build();
                     break;
                 case FOLDER:
                     if (searchCallback == null)
@@ -793,8 +796,11 @@ public class FragmentMessages extends FragmentEx {
                             .setInitialLoadSizeHint(LOCAL_PAGE_SIZE)
                             .setPrefetchDistance(REMOTE_PAGE_SIZE)
                             .build();
-                    LivePagedListBuilder<Integer, TupleMessageEx> builder = new LivePagedListBuilder<>(
-                            db.message().pagedFolder(folder, sort, false, debug), config);
+                    LivePagedListBuilder<?, TupleMessageEx> builder;
+                    if (debug)
+                        builder = new LivePagedListBuilder<>(db.message().pagedFolder(folder, sort, false, true), config);
+                    else
+                        builder = new LivePagedListBuilder<>(new DataSourceMessages.Factory(db, folder, sort), config);
                     if (browse)
                         builder.setBoundaryCallback(searchCallback);
                     messages = builder.build();
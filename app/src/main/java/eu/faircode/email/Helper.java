@@ -54,6 +54,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadFactory;
 
@@ -363,6 +364,41 @@ public class Helper {
         return result;
     }
 
+    static long[] except(long[] sorted, long[] remove) {
+        // Linear merge of two sorted arrays, without boxing
+        // - arrays which are not sorted, are sorted first
+        sorted = sort(sorted);
+        remove = sort(remove);
+        long[] result = new long[sorted.length];
+        int count = 0;
+        int r = 0;
+        for (long value : sorted) {
+            while (r < remove.length && remove[r] < value)
+                r++;
+            if (r == remove.length || remove[r] != value)
+                result[count++] = value;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static long[] sort(long[] array) {
+        for (int i = 1; i < array.length; i++)
+            if (array[i - 1] > array[i]) {
+                long[] sorted = Arrays.copyOf(array, array.length);
+                Arrays.sort(sorted);
+                return sorted;
+            }
+        return array;
+    }
+
+    // Ranges {from, to} (inclusive) of at most size items, last items first
+    static List<int[]> getWindows(int count, int size) {
+        List<int[]> result = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i -= size)
+            result.add(new int[]{Math.max(0, i - size + 1), i});
+        return result;
+    }
+
     static List<Long> fromLongArray(long[] array) {
         List<Long> result = new ArrayList<>();
         for (int i = 0; i < array.length; i++)
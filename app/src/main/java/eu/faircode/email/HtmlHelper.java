@@ -32,8 +32,19 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class HtmlHelper {
+    private static final int PREVIEW_LENGTH = 250; // characters
+
     private static Pattern pattern = Pattern.compile("([http|https]+://[\\w\\S(\\.|:|/)]+)");
 
+    static String getPreview(String html) {
+        String text = getText(html);
+        return (text.length() > PREVIEW_LENGTH ? text.substring(0, PREVIEW_LENGTH) : text);
+    }
+
+    static String getText(String html) {
+        return Jsoup.parse(html).text().replaceAll("\\s+", " ").trim();
+    }
+
     public static String sanitize(String html) {
         Document document = Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed().addProtocols("img", "src", "cid")));
         for (Element tr : document.select("tr"))
@@ -91,6 +91,20 @@ public class JobDaily extends JobService {
                             }
                         }
 
+                // Cleanup spooled messages
+                Log.i(Helper.TAG, "Cleanup spool files");
+                File[] spool = new File(getCacheDir(), "spool").listFiles();
+                if (spool != null)
+                    for (File file : spool)
+                        if (file.isFile()) {
+                            long id = Long.parseLong(file.getName());
+                            if (db.message().countMessage(id) == 0) {
+                                Log.i(Helper.TAG, "Cleanup spool id=" + id);
+                                if (!file.delete())
+                                    Log.w(Helper.TAG, "Error deleting " + file);
+                            }
+                        }
+
                 Log.i(Helper.TAG, "Cleanup log");
                 long before = new Date().getTime() - 24 * 3600 * 1000L;
                 int logs = db.log().deleteLogs(before);
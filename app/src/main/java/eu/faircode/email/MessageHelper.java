@@ -20,19 +20,34 @@ package eu.faircode.email;
 */
 
 import android.content.Context;
+import android.text.Html;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
 import org.jsoup.Jsoup;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
@@ -55,6 +70,8 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
 import javax.mail.internet.ParseException;
 
 public class MessageHelper {
@@ -62,6 +79,16 @@ public class MessageHelper {
     private String raw = null;
 
     final static int NETWORK_TIMEOUT = 60 * 1000; // milliseconds
+    final static int PREVIEW_SIZE = 512; // bytes
+    final static int PREVIEW_HTML_SIZE = 8192; // bytes, the head and style come first
+    final static int INDEX_SIZE = 64 * 1024; // characters of html
+
+    // Headers used, besides the envelope and the body structure
+    // - all headers are fetched by the headers operation only
+    final static String[] FETCH_HEADERS = new String[]{
+            "Message-ID", "References", "In-Reply-To", "Delivered-To", "X-Delivered-To", "Reply-To"
+    };
+    private final static int BUFFER_SIZE = 8192; // characters
 
     static Properties getSessionProperties(int auth_type) {
         Properties props = new Properties();
@@ -235,6 +262,18 @@ public class MessageHelper {
         return imessage;
     }
 
+    static void spool(MimeMessage imessage, File file) throws MessagingException, IOException {
+        // Encode message once, including attachments
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(file));
+            imessage.writeTo(os);
+        } finally {
+            if (os != null)
+                os.close();
+        }
+    }
+
     MessageHelper(MimeMessage message) {
         this.imessage = message;
     }
@@ -330,74 +369,230 @@ public class MessageHelper {
         return TextUtils.join(", ", formatted);
     }
 
-    String getHtml() throws MessagingException, IOException {
-        return getHtml(imessage);
+    boolean writeHtml(File file, StringBuilder start) throws MessagingException, IOException {
+        // Stream the body to the file, without keeping it in memory
+        // - text parts are read by BODY[section] in blocks of fetchsize
+        // - start: receives the first INDEX_SIZE characters, for the full text index
+        // Returns false when the message has no text part
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            return writeHtml(imessage, new StartWriter(out, start));
+        } finally {
+            out.close();
+        }
     }
 
-    private static String getHtml(Part part) throws MessagingException, IOException {
-        if (part.isMimeType("text/*")) {
-            String s;
-            try {
-                s = part.getContent().toString();
-            } catch (UnsupportedEncodingException ex) {
-                // x-binaryenc
-                Log.w(Helper.TAG, "Unsupported encoding: " + part.getContentType());
-                // https://javaee.github.io/javamail/FAQ#unsupen
-                InputStream is = part.getInputStream();
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                byte[] buffer = new byte[4096];
-                for (int len = is.read(buffer); len != -1; len = is.read(buffer))
-                    os.write(buffer, 0, len);
-                s = new String(os.toByteArray(), "US-ASCII");
-            } catch (IOException ex) {
-                // IOException; Unknown encoding: none
-                Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                s = ex.toString();
+    String getPreview(IMAPFolder ifolder) throws MessagingException, IOException {
+        // Fetch the start of the text part only
+        TextPart text = getTextPart(imessage, null);
+        if (text == null)
+            return null;
+
+        final int msgno = imessage.getMessageNumber();
+        final String section = text.section;
+        final int size = (text.part.isMimeType("text/html") ? PREVIEW_HTML_SIZE : PREVIEW_SIZE);
+        BODY body = (BODY) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                return protocol.peekBody(msgno, section, 0, size);
+            }
+        });
+        if (body == null || body.getByteArray() == null)
+            return null;
+
+        // Decode transfer encoding, the last encoded characters might be incomplete
+        // - parts without Content-Transfer-Encoding are 7bit
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        String encoding = text.part.getEncoding();
+        InputStream is = body.getByteArray().toByteArrayInputStream();
+        if (encoding != null)
+            is = MimeUtility.decode(is, encoding);
+        try {
+            byte[] buffer = new byte[PREVIEW_SIZE];
+            for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+                os.write(buffer, 0, len);
+        } catch (IOException ex) {
+            Log.w(Helper.TAG, "Preview " + ex);
+        }
+
+        String charset = new ContentType(text.part.getContentType()).getParameter("charset");
+        String s;
+        try {
+            s = os.toString(charset == null ? "US-ASCII" : MimeUtility.javaCharset(charset));
+        } catch (UnsupportedEncodingException ex) {
+            Log.w(Helper.TAG, "Preview " + ex);
+            s = os.toString("US-ASCII");
+        }
+
+        if (text.part.isMimeType("text/plain"))
+            s = "<pre>" + Html.escapeHtml(s) + "</pre>";
+        String preview = HtmlHelper.getPreview(s);
+        return (TextUtils.isEmpty(preview) ? null : preview); // no text in the fetched part of the html
+    }
+
+    private static TextPart getTextPart(Part part, String section) throws MessagingException, IOException {
+        // Section numbers are from the body structure, no content is fetched
+        if (part.isMimeType("text/plain") || part.isMimeType("text/html")) {
+            if (!(part instanceof MimePart) || Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()))
+                return null;
+            TextPart text = new TextPart();
+            text.section = (section == null ? "1" : section);
+            text.part = (MimePart) part;
+            return text;
+        }
+
+        if (part.isMimeType("multipart/*")) {
+            TextPart html = null;
+            Multipart mp = (Multipart) part.getContent();
+            for (int i = 0; i < mp.getCount(); i++) {
+                TextPart text = getTextPart(mp.getBodyPart(i), (section == null ? "" : section + ".") + (i + 1));
+                if (text != null)
+                    if (text.part.isMimeType("text/plain"))
+                        return text;
+                    else if (html == null)
+                        html = text;
             }
+            return html;
+        }
+
+        return null;
+    }
+
+    private static class StartWriter extends FilterWriter {
+        private StringBuilder start;
+
+        StartWriter(Writer out, StringBuilder start) {
+            super(out);
+            this.start = start;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (start.length() < INDEX_SIZE)
+                start.append((char) c);
+            super.write(c);
+        }
 
-            if (part.isMimeType("text/plain"))
-                s = "<pre>" + s.replaceAll("\\r?\\n", "<br />") + "</pre>";
-            return s;
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int n = Math.min(len, INDEX_SIZE - start.length());
+            if (n > 0)
+                start.append(cbuf, off, n);
+            super.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int n = Math.min(len, INDEX_SIZE - start.length());
+            if (n > 0)
+                start.append(str, off, off + n);
+            super.write(str, off, len);
+        }
+    }
+
+    private static class TextPart {
+        String section;
+        MimePart part;
+    }
+
+    private static boolean writeHtml(Part part, Writer out) throws MessagingException, IOException {
+        if (part.isMimeType("text/*")) {
+            writeText(part, out);
+            return true;
         }
 
         if (part.isMimeType("multipart/alternative")) {
-            String text = null;
+            Part text = null;
             try {
                 Multipart mp = (Multipart) part.getContent();
                 for (int i = 0; i < mp.getCount(); i++) {
                     Part bp = mp.getBodyPart(i);
                     if (bp.isMimeType("text/plain")) {
                         if (text == null)
-                            text = getHtml(bp);
+                            text = bp;
                     } else if (bp.isMimeType("text/html")) {
-                        String s = getHtml(bp);
-                        if (s != null)
-                            return s;
+                        writeText(bp, out);
+                        return true;
                     } else
-                        return getHtml(bp);
+                        return writeHtml(bp, out);
                 }
             } catch (ParseException ex) {
                 // ParseException: In parameter list boundary="...">, expected parameter name, got ";"
                 Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                text = ex.toString();
+                out.write(ex.toString());
+                return true;
             }
-            return text;
+            if (text == null)
+                return false;
+            writeText(text, out);
+            return true;
         }
 
         if (part.isMimeType("multipart/*"))
             try {
                 Multipart mp = (Multipart) part.getContent();
-                for (int i = 0; i < mp.getCount(); i++) {
-                    String s = getHtml(mp.getBodyPart(i));
-                    if (s != null)
-                        return s;
-                }
+                for (int i = 0; i < mp.getCount(); i++)
+                    if (writeHtml(mp.getBodyPart(i), out))
+                        return true;
             } catch (ParseException ex) {
                 Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                return ex.toString();
+                out.write(ex.toString());
+                return true;
             }
 
-        return null;
+        return false;
+    }
+
+    private static void writeText(Part part, Writer out) throws MessagingException, IOException {
+        Reader in;
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            try {
+                in = new InputStreamReader(part.getInputStream(),
+                        charset == null ? "US-ASCII" : MimeUtility.javaCharset(charset));
+            } catch (UnsupportedEncodingException ex) {
+                // x-binaryenc
+                Log.w(Helper.TAG, "Unsupported encoding: " + part.getContentType());
+                // https://javaee.github.io/javamail/FAQ#unsupen
+                in = new InputStreamReader(part.getInputStream(), "US-ASCII");
+            }
+        } catch (MessagingException ex) {
+            // Unknown encoding: none
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            out.write(ex.toString());
+            return;
+        }
+
+        // Decode and escape with a fixed size buffer
+        boolean plain = part.isMimeType("text/plain");
+        try {
+            if (plain)
+                out.write("<pre>");
+
+            char[] buffer = new char[BUFFER_SIZE];
+            for (int len = in.read(buffer); len != -1; len = in.read(buffer))
+                if (plain)
+                    for (int i = 0; i < len; i++) {
+                        char c = buffer[i];
+                        if (c == '&')
+                            out.write("&amp;");
+                        else if (c == '<')
+                            out.write("&lt;");
+                        else if (c == '>')
+                            out.write("&gt;");
+                        else if (c == '\n')
+                            out.write("<br />");
+                        else if (c != '\r')
+                            out.write(c);
+                    }
+                else
+                    out.write(buffer, 0, len);
+
+            if (plain)
+                out.write("</pre>");
+        } finally {
+            in.close();
+        }
     }
 
     public List<EntityAttachment> getAttachments() throws IOException, MessagingException {
@@ -411,7 +606,7 @@ public class MessageHelper {
             if (content instanceof Multipart) {
                 Multipart multipart = (Multipart) content;
                 for (int i = 0; i < multipart.getCount(); i++)
-                    result.addAll(getAttachments(multipart.getBodyPart(i)));
+                    result.addAll(getAttachments(multipart.getBodyPart(i), Integer.toString(i + 1)));
             }
         } catch (ParseException ex) {
             Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
@@ -420,22 +615,27 @@ public class MessageHelper {
         return result;
     }
 
-    private static List<EntityAttachment> getAttachments(BodyPart part) throws
+    private static List<EntityAttachment> getAttachments(BodyPart part, String section) throws
             IOException, MessagingException {
         List<EntityAttachment> result = new ArrayList<>();
 
-        Object content;
-        try {
-            content = part.getContent();
-        } catch (UnsupportedEncodingException ex) {
-            Log.w(Helper.TAG, "attachment content type=" + part.getContentType());
-            content = part.getInputStream();
-        } catch (ParseException ex) {
-            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-            content = null;
-        }
+        // The structure of IMAP parts is known from the body structure
+        // - the content of single parts is not needed and would be fetched
+        if (part.isMimeType("multipart/*")) {
+            Object content;
+            try {
+                content = part.getContent();
+            } catch (ParseException ex) {
+                Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                content = null;
+            }
 
-        if (content instanceof InputStream || content instanceof String) {
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart) content;
+                for (int i = 0; i < multipart.getCount(); i++)
+                    result.addAll(getAttachments(multipart.getBodyPart(i), section + "." + (i + 1)));
+            }
+        } else if (!part.isMimeType("message/rfc822")) {
             String disposition;
             try {
                 disposition = part.getDisposition();
@@ -463,6 +663,8 @@ public class MessageHelper {
                 attachment.type = ct.getBaseType().toLowerCase();
                 attachment.size = part.getSize();
                 attachment.cid = (cid == null || cid.length == 0 ? null : cid[0]);
+                attachment.section = section;
+                attachment.encoding = (part instanceof MimePart ? ((MimePart) part).getEncoding() : null);
                 attachment.part = part;
 
                 // Try to guess a better content type
@@ -483,10 +685,6 @@ public class MessageHelper {
 
                 result.add(attachment);
             }
-        } else if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
-            for (int i = 0; i < multipart.getCount(); i++)
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
         }
 
         return result;
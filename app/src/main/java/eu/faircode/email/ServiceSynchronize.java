@@ -19,20 +19,15 @@ package eu.faircode.email;
     Copyright 2018 by Marcel Bokhorst (M66B)
 */
 
-import android.Manifest;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.graphics.drawable.Icon;
 import android.media.RingtoneManager;
 import android.net.ConnectivityManager;
@@ -40,29 +35,44 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
+import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.provider.ContactsContract;
 import android.text.Html;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.sun.mail.iap.Argument;
 import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
 import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPInputStream;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ModifiedSinceTerm;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.SearchSequence;
+import com.sun.mail.imap.protocol.UIDSet;
 import com.sun.mail.util.FolderClosedIOException;
 import com.sun.mail.util.MailConnectException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
@@ -74,11 +84,20 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
@@ -101,6 +120,7 @@ import javax.mail.event.ConnectionAdapter;
 import javax.mail.event.ConnectionEvent;
 import javax.mail.event.FolderAdapter;
 import javax.mail.event.FolderEvent;
+import javax.mail.event.MailEvent;
 import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageChangedListener;
 import javax.mail.event.MessageCountAdapter;
@@ -109,8 +129,11 @@ import javax.mail.event.StoreEvent;
 import javax.mail.event.StoreListener;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.SharedFileInputStream;
 import javax.mail.search.ComparisonTerm;
 import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
 import javax.net.ssl.SSLException;
 
 import androidx.annotation.Nullable;
@@ -122,7 +145,8 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
 public class ServiceSynchronize extends LifecycleService {
-    private final Object lock = new Object();
+    private final FolderLocks locks = new FolderLocks();
+    private final Map<Long, CachedTransport> transports = new HashMap<>(); // identity id > transport
     private TupleAccountStats lastStats = null;
     private ServiceManager serviceManager = new ServiceManager();
 
@@ -131,10 +155,14 @@ public class ServiceSynchronize extends LifecycleService {
     private static final int CONNECT_BACKOFF_START = 8; // seconds
     private static final int CONNECT_BACKOFF_MAX = 1024; // seconds (1024 sec ~ 17 min)
     private static final int SYNC_BATCH_SIZE = 20;
+    private static final int SYNC_PIPELINE_SIZE = 2; // batches
+    private static final int SYNC_WINDOW_SIZE = 1000; // uids
     private static final int DOWNLOAD_BATCH_SIZE = 20;
     private static final int MESSAGE_AUTO_DOWNLOAD_SIZE = 32 * 1024; // bytes
     private static final int ATTACHMENT_AUTO_DOWNLOAD_SIZE = 32 * 1024; // bytes
     private static final long RECONNECT_BACKOFF = 90 * 1000L; // milliseconds
+    private static final int OPERATION_BATCH_SIZE = 500; // uids per command
+    private static final long TRANSPORT_IDLE_TIMEOUT = 60 * 1000L; // milliseconds
 
     static final int PI_CLEAR = 1;
     static final int PI_SEEN = 2;
@@ -557,7 +585,8 @@ public class ServiceSynchronize extends LifecycleService {
             wl0.acquire();
 
             final DB db = DB.getInstance(this);
-            final ExecutorService executor = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
+            final DownloadScheduler scheduler = new DownloadScheduler();
+            state.scheduler = scheduler;
 
             int backoff = CONNECT_BACKOFF_START;
             while (state.running) {
@@ -679,6 +708,9 @@ public class ServiceSynchronize extends LifecycleService {
 
                     EntityLog.log(this, account.name + " connected");
 
+                    // Share authenticated store, for example for remote searches
+                    StorePool.share(account, istore);
+
                     // Update folder list
                     synchronizeFolders(account, istore, state);
 
@@ -690,7 +722,7 @@ public class ServiceSynchronize extends LifecycleService {
 
                         final IMAPFolder ifolder = (IMAPFolder) istore.getFolder(folder.name);
                         try {
-                            ifolder.open(Folder.READ_WRITE);
+                            openFolder(folder, istore, ifolder);
                         } catch (Throwable ex) {
                             db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
                             throw ex;
@@ -718,7 +750,7 @@ public class ServiceSynchronize extends LifecycleService {
                                     ifolder.addMessageCountListener(new MessageCountAdapter() {
                                         @Override
                                         public void messagesAdded(MessageCountEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (locks.get(folder.id)) {
                                                 try {
                                                     wl.acquire();
                                                     Log.i(Helper.TAG, folder.name + " messages added");
@@ -728,11 +760,12 @@ public class ServiceSynchronize extends LifecycleService {
                                                     fp.add(FetchProfile.Item.FLAGS);
                                                     fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
                                                     fp.add(UIDFolder.FetchProfileItem.UID);
-                                                    fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-                                                    fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+                                                    for (String header : MessageHelper.FETCH_HEADERS)
+                                                        fp.add(header); // not all headers
                                                     fp.add(FetchProfile.Item.SIZE);
                                                     fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
                                                     ifolder.fetch(e.getMessages(), fp);
+                                                    ContactCache.prefetch(ServiceSynchronize.this, e.getMessages());
 
                                                     for (Message imessage : e.getMessages())
                                                         try {
@@ -770,7 +803,7 @@ public class ServiceSynchronize extends LifecycleService {
 
                                         @Override
                                         public void messagesRemoved(MessageCountEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (locks.get(folder.id)) {
                                                 try {
                                                     wl.acquire();
                                                     Log.i(Helper.TAG, folder.name + " messages removed");
@@ -799,8 +832,33 @@ public class ServiceSynchronize extends LifecycleService {
                                         }
                                     });
 
-                                    // Fetch e-mail
-                                    synchronizeMessages(account, folder, ifolder, state);
+                                    // Fetch new e-mail first
+                                    if (synchronizeNew(account, folder, ifolder, state)) {
+                                        // Reconcile flags and deleted messages in the background
+                                        scheduler.submit(DownloadScheduler.PRIORITY_BACKGROUND, new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                try {
+                                                    wl.acquire();
+                                                    // The folder is closed when the account reconnected in the meantime
+                                                    if (ifolder.isOpen())
+                                                        synchronizeMessages(account, folder, ifolder, state);
+                                                } catch (FolderClosedException ex) {
+                                                    Log.w(Helper.TAG, folder.name + " " + ex.toString());
+                                                } catch (Throwable ex) {
+                                                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                                    reportError(account.name, folder.name, ex);
+
+                                                    db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                                                } finally {
+                                                    wl.release();
+                                                }
+                                            }
+                                        });
+                                    } else {
+                                        // Fetch e-mail
+                                        synchronizeMessages(account, folder, ifolder, state);
+                                    }
 
                                     // Flags (like "seen") at the remote could be changed while synchronizing
 
@@ -808,7 +866,7 @@ public class ServiceSynchronize extends LifecycleService {
                                     ifolder.addMessageChangedListener(new MessageChangedListener() {
                                         @Override
                                         public void messageChanged(MessageChangedEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (locks.get(folder.id)) {
                                                 try {
                                                     wl.acquire();
                                                     try {
@@ -904,7 +962,15 @@ public class ServiceSynchronize extends LifecycleService {
                     BroadcastReceiver processFolder = new BroadcastReceiver() {
                         @Override
                         public void onReceive(Context context, final Intent intent) {
-                            executor.submit(new Runnable() {
+                            int priority;
+                            if (ACTION_SYNCHRONIZE_FOLDER.equals(intent.getAction()))
+                                priority = DownloadScheduler.PRIORITY_BACKGROUND;
+                            else if (intent.getBooleanExtra("urgent", false))
+                                priority = DownloadScheduler.PRIORITY_USER;
+                            else
+                                priority = DownloadScheduler.PRIORITY_OPERATIONS;
+
+                            scheduler.submit(priority, new Runnable() {
                                 PowerManager.WakeLock wl = pm.newWakeLock(
                                         PowerManager.PARTIAL_WAKE_LOCK,
                                         BuildConfig.APPLICATION_ID + ":account." + account.id + ".process");
@@ -943,7 +1009,7 @@ public class ServiceSynchronize extends LifecycleService {
                                                 db.folder().setFolderState(folder.id, "connecting");
 
                                                 ifolder = (IMAPFolder) istore.getFolder(folder.name);
-                                                ifolder.open(Folder.READ_WRITE);
+                                                openFolder(folder, istore, ifolder);
 
                                                 db.folder().setFolderState(folder.id, "connected");
                                                 db.folder().setFolderError(folder.id, null);
@@ -1076,6 +1142,7 @@ public class ServiceSynchronize extends LifecycleService {
                     }
 
                     // Close store
+                    StorePool.unshare(account, istore);
                     try {
                         Thread t = new Thread(new Runnable() {
                             @Override
@@ -1125,19 +1192,50 @@ public class ServiceSynchronize extends LifecycleService {
                 }
             }
         } finally {
+            // Queued work needs the store of the account, which is closed now
+            if (state.scheduler != null)
+                state.scheduler.shutdown();
             EntityLog.log(this, account.name + " stopped");
             wl0.release();
         }
     }
 
+    private void openFolder(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder) throws MessagingException {
+        DB db = DB.getInstance(this);
+        EntityFolder stored = db.folder().getFolder(folder.id);
+
+        // https://tools.ietf.org/html/rfc7162#section-3.2.5
+        if (istore.hasCapability("QRESYNC") && stored.uidv != null && stored.modseq != null) {
+            Log.i(Helper.TAG, folder.name + " resync uidv=" + stored.uidv + " modseq=" + stored.modseq);
+            List<MailEvent> events = ifolder.open(Folder.READ_WRITE, new ResyncData(stored.uidv, stored.modseq));
+            // Changed flags will be fetched by synchronizeMessages using CHANGEDSINCE
+            if (events != null)
+                for (MailEvent event : events)
+                    if (event instanceof MessageVanishedEvent)
+                        for (long uid : ((MessageVanishedEvent) event).getUIDs()) {
+                            int count = db.message().deleteMessage(folder.id, uid);
+                            Log.i(Helper.TAG, folder.name + " vanished uid=" + uid + " count=" + count);
+                        }
+        } else {
+            ifolder.open(Folder.READ_WRITE);
+            // Messages expunged while the folder was not selected are unknown
+            db.folder().setFolderModSeq(folder.id, null);
+        }
+    }
+
     private void processOperations(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder) throws MessagingException, JSONException, IOException {
-        synchronized (lock) {
+        synchronized (locks.get(folder.id)) {
             try {
                 Log.i(Helper.TAG, folder.name + " start process");
 
                 DB db = DB.getInstance(this);
                 List<EntityOperation> ops = db.operation().getOperationsByFolder(folder.id);
                 Log.i(Helper.TAG, folder.name + " pending operations=" + ops.size());
+
+                // Execute flag/delete/move operations in batches, the remaining ones one by one
+                if (ifolder != null)
+                    ops = processBatches(folder, istore, ifolder, ops, db);
+
                 for (EntityOperation op : ops)
                     try {
                         Log.i(Helper.TAG, folder.name +
@@ -1154,7 +1252,6 @@ public class ServiceSynchronize extends LifecycleService {
 
                             if (message.uid == null &&
                                     (EntityOperation.SEEN.equals(op.name) ||
-                                            EntityOperation.DELETE.equals(op.name) ||
                                             EntityOperation.MOVE.equals(op.name) ||
                                             EntityOperation.HEADERS.equals(op.name)))
                                 throw new IllegalArgumentException(op.name + " without uid");
@@ -1171,7 +1268,7 @@ public class ServiceSynchronize extends LifecycleService {
                                 doAdd(folder, isession, ifolder, message, jargs, db);
 
                             else if (EntityOperation.MOVE.equals(op.name))
-                                doMove(folder, isession, istore, ifolder, message, jargs, db);
+                                doMove(folder, istore, ifolder, message, jargs, db);
 
                             else if (EntityOperation.DELETE.equals(op.name))
                                 doDelete(folder, ifolder, message, jargs, db);
@@ -1229,6 +1326,165 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
+    private List<EntityOperation> processBatches(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, List<EntityOperation> ops, DB db) throws MessagingException, JSONException {
+        // Messages with other pending operations are processed one by one to keep the order
+        Set<Long> ordered = new HashSet<>();
+        for (EntityOperation op : ops)
+            if (!isBatchable(op))
+                ordered.add(op.message);
+
+        Map<String, List<EntityOperation>> groups = new LinkedHashMap<>(); // name/args > operations
+        List<EntityOperation> remaining = new ArrayList<>();
+        for (EntityOperation op : ops)
+            if (isBatchable(op) && !ordered.contains(op.message)) {
+                String key = op.name + op.args;
+                List<EntityOperation> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(key, group);
+                }
+                group.add(op);
+            } else
+                remaining.add(op);
+
+        // Flags before moves before deletes
+        for (String name : new String[]{EntityOperation.SEEN, EntityOperation.FLAG, EntityOperation.MOVE, EntityOperation.DELETE})
+            for (List<EntityOperation> group : groups.values())
+                if (name.equals(group.get(0).name))
+                    for (int i = 0; i < group.size(); i += OPERATION_BATCH_SIZE) {
+                        List<EntityOperation> batch = group.subList(i, Math.min(group.size(), i + OPERATION_BATCH_SIZE));
+                        try {
+                            processBatch(folder, istore, ifolder, batch, remaining, db);
+                        } catch (FolderClosedException ex) {
+                            throw ex;
+                        } catch (MessagingException ex) {
+                            // Process one by one to attribute the error to the right operation
+                            // - repeating a store, move or expunge is harmless, a copy is one command
+                            Log.w(Helper.TAG, folder.name + " batch " + name + " failed " + ex);
+                            remaining.addAll(batch);
+                        }
+                    }
+
+        return remaining;
+    }
+
+    private boolean isBatchable(EntityOperation op) {
+        return (EntityOperation.SEEN.equals(op.name) ||
+                EntityOperation.FLAG.equals(op.name) ||
+                EntityOperation.DELETE.equals(op.name) ||
+                EntityOperation.MOVE.equals(op.name));
+    }
+
+    private void processBatch(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, List<EntityOperation> batch, List<EntityOperation> remaining, DB db) throws MessagingException, JSONException {
+        String name = batch.get(0).name;
+        JSONArray jargs = new JSONArray(batch.get(0).args);
+
+        // Get messages
+        List<EntityOperation> ops = new ArrayList<>();
+        List<EntityMessage> messages = new ArrayList<>();
+        for (EntityOperation op : batch) {
+            EntityMessage message = db.message().getMessage(op.message);
+            if (message == null) {
+                // There is no use in repeating
+                Log.w(Helper.TAG, folder.name + " op=" + op.id + "/" + op.name + " message removed");
+                db.operation().deleteOperation(op.id);
+            } else if (message.uid == null)
+                remaining.add(op); // processed one by one
+            else if (EntityOperation.SEEN.equals(name) && message.seen == jargs.getBoolean(0))
+                db.operation().deleteOperation(op.id);
+            else {
+                ops.add(op);
+                messages.add(message);
+            }
+        }
+        if (ops.size() == 0)
+            return;
+
+        boolean move = istore.hasCapability("MOVE");
+
+        long[] uids = new long[messages.size()];
+        for (int i = 0; i < messages.size(); i++)
+            uids[i] = messages.get(i).uid;
+        Arrays.sort(uids);
+        String set = UIDSet.toString(UIDSet.createUIDSets(uids));
+        Log.i(Helper.TAG, folder.name + " batch " + name + " args=" + jargs + " uids=" + set);
+
+        // Execute
+        // - uids which do not exist (anymore) are ignored by the server
+        if (EntityOperation.SEEN.equals(name))
+            uidCommand(ifolder, "UID STORE " + set + (jargs.getBoolean(0) ? " +" : " -") + "FLAGS.SILENT (\\Seen)", null);
+
+        else if (EntityOperation.FLAG.equals(name))
+            uidCommand(ifolder, "UID STORE " + set + (jargs.getBoolean(0) ? " +" : " -") + "FLAGS.SILENT (\\Flagged)", null);
+
+        else if (EntityOperation.MOVE.equals(name)) {
+            EntityFolder target = db.folder().getFolder(jargs.getLong(0));
+            if (target == null) {
+                // Unrecoverable
+                remaining.addAll(ops);
+                return;
+            }
+            if (move)
+                uidCommand(ifolder, "UID MOVE " + set, BASE64MailboxEncoder.encode(target.name));
+            else
+                // The originals are expunged by delete operations, a failure should not copy again
+                uidCommand(ifolder, "UID COPY " + set, BASE64MailboxEncoder.encode(target.name));
+
+        } else if (EntityOperation.DELETE.equals(name))
+            expungeUids(istore, ifolder, set);
+
+        // Operations succeeded
+        try {
+            db.beginTransaction();
+
+            for (int i = 0; i < ops.size(); i++) {
+                EntityMessage message = messages.get(i);
+                db.message().setMessageError(message.id, null);
+
+                if (EntityOperation.SEEN.equals(name))
+                    db.message().setMessageSeen(message.id, jargs.getBoolean(0));
+                else if (EntityOperation.FLAG.equals(name))
+                    db.message().setMessageFlagged(message.id, jargs.getBoolean(0));
+                else if (EntityOperation.MOVE.equals(name) && !move && !EntityFolder.ARCHIVE.equals(folder.type))
+                    EntityOperation.queue(db, message, EntityOperation.DELETE);
+                else if (EntityOperation.DELETE.equals(name))
+                    db.message().deleteMessage(message.id);
+
+                db.operation().deleteOperation(ops.get(i).id);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        EntityOperation.process(this);
+    }
+
+    private static void expungeUids(IMAPStore istore, IMAPFolder ifolder, String set) throws MessagingException {
+        uidCommand(ifolder, "UID STORE " + set + " +FLAGS.SILENT (\\Deleted)", null);
+        if (istore.hasCapability("UIDPLUS"))
+            uidCommand(ifolder, "UID EXPUNGE " + set, null);
+        else
+            ifolder.expunge();
+    }
+
+    private static void uidCommand(IMAPFolder ifolder, final String command, final String mailbox) throws MessagingException {
+        ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Argument args = null;
+                if (mailbox != null) {
+                    args = new Argument();
+                    args.writeString(mailbox);
+                }
+                // Untagged responses, like EXPUNGE, are handled by the folder
+                protocol.simpleCommand(command, args);
+                return null;
+            }
+        });
+    }
+
     private void doSeen(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException {
         // Mark message (un)seen
         boolean seen = jargs.getBoolean(0);
@@ -1258,9 +1514,26 @@ public class ServiceSynchronize extends LifecycleService {
 
     private void doAdd(EntityFolder folder, Session isession, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException, IOException {
         // Append message
-        List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
-        MimeMessage imessage = MessageHelper.from(this, message, null, attachments, isession);
-        AppendUID[] uid = ifolder.appendUIDMessages(new Message[]{imessage});
+        // - a sent message is appended as it was encoded for sending
+        File spool = EntityMessage.getSpoolFile(this, message.id);
+        SharedFileInputStream is = null;
+        AppendUID[] uid;
+        try {
+            MimeMessage imessage;
+            if (spool.exists()) {
+                Log.i(Helper.TAG, "Appending spooled size=" + spool.length());
+                is = new SharedFileInputStream(spool);
+                imessage = new MimeMessage(isession, is);
+            } else {
+                List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+                imessage = MessageHelper.from(this, message, null, attachments, isession);
+            }
+            uid = ifolder.appendUIDMessages(new Message[]{imessage});
+        } finally {
+            if (is != null)
+                is.close();
+        }
+        spool.delete();
         db.message().setMessageUid(message.id, uid[0].uid);
         Log.i(Helper.TAG, "Appended uid=" + uid[0].uid);
 
@@ -1274,7 +1547,7 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
-    private void doMove(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws JSONException, MessagingException, IOException {
+    private void doMove(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws JSONException, MessagingException {
         // Move message
         long id = jargs.getLong(0);
         EntityFolder target = db.folder().getFolder(id);
@@ -1290,23 +1563,29 @@ public class ServiceSynchronize extends LifecycleService {
             Folder itarget = istore.getFolder(target.name);
             ifolder.moveMessages(new Message[]{imessage}, itarget);
         } else {
-            Log.w(Helper.TAG, "MOVE by DELETE/APPEND");
+            Log.w(Helper.TAG, "MOVE by COPY/DELETE");
 
-            List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+            // Server side copy, the message is not uploaded again
+            // - the original is expunged by a delete operation, a failure should not copy again
+            String set = Long.toString(message.uid);
+            uidCommand(ifolder, "UID COPY " + set, BASE64MailboxEncoder.encode(target.name));
 
             if (!EntityFolder.ARCHIVE.equals(folder.type)) {
-                imessage.setFlag(Flags.Flag.DELETED, true);
-                ifolder.expunge();
+                EntityOperation.queue(db, message, EntityOperation.DELETE);
+                EntityOperation.process(this);
             }
-
-            MimeMessageEx icopy = MessageHelper.from(this, message, null, attachments, isession);
-            Folder itarget = istore.getFolder(target.name);
-            itarget.appendMessages(new Message[]{icopy});
         }
     }
 
     private void doDelete(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException {
         // Delete message
+        // - a message which was never appended exists locally only
+        if (message.uid == null) {
+            Log.i(Helper.TAG, folder.name + " delete local only msg=" + message.id);
+            db.message().deleteMessage(message.id);
+            return;
+        }
+
         Message imessage = ifolder.getMessageByUID(message.uid);
         if (imessage == null)
             throw new MessageRemovedException();
@@ -1325,42 +1604,35 @@ public class ServiceSynchronize extends LifecycleService {
             return;
         }
 
-        // Create session
-        Properties props = MessageHelper.getSessionProperties(ident.auth_type);
-        final Session isession = Session.getInstance(props, null);
+        File spool = EntityMessage.getSpoolFile(this, message.id);
+        boolean append = false;
+        try {
+            // Get connected transport
+            // - consecutive messages are sent over the same authenticated session
+            CachedTransport cached = getTransport(ident, db);
 
-        // Create message
-        MimeMessage imessage;
-        EntityMessage reply = (message.replying == null ? null : db.message().getMessage(message.replying));
-        List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
-        imessage = MessageHelper.from(this, message, reply, attachments, isession);
+            // Create message
+            MimeMessage imessage;
+            EntityMessage reply = (message.replying == null ? null : db.message().getMessage(message.replying));
+            List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+            imessage = MessageHelper.from(this, message, reply, attachments, cached.isession);
 
-        if (ident.replyto != null)
-            imessage.setReplyTo(new Address[]{new InternetAddress(ident.replyto)});
+            if (ident.replyto != null)
+                imessage.setReplyTo(new Address[]{new InternetAddress(ident.replyto)});
 
-        // Create transport
-        // TODO: cache transport?
-        Transport itransport = isession.getTransport(ident.starttls ? "smtp" : "smtps");
-        try {
-            // Connect transport
-            db.identity().setIdentityState(ident.id, "connecting");
-            try {
-                itransport.connect(ident.host, ident.port, ident.user, ident.password);
-            } catch (AuthenticationFailedException ex) {
-                if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
-                    EntityAccount account = db.account().getAccount(ident.account);
-                    ident.password = Helper.refreshToken(this, "com.google", ident.user, account.password);
-                    DB.getInstance(this).identity().setIdentityPassword(ident.id, ident.password);
-                    itransport.connect(ident.host, ident.port, ident.user, ident.password);
-                } else
-                    throw ex;
-            }
-            db.identity().setIdentityState(ident.id, "connected");
-            db.identity().setIdentityError(ident.id, null);
+            // Spool message
+            // - the encoded message is sent and appended to the sent folder
+            MessageHelper.spool(imessage, spool);
 
             // Send message
             Address[] to = imessage.getAllRecipients();
-            itransport.sendMessage(imessage, to);
+            SharedFileInputStream is = new SharedFileInputStream(spool);
+            try {
+                cached.itransport.sendMessage(new MimeMessage(cached.isession, is), to);
+            } finally {
+                is.close();
+            }
+            cached.used = SystemClock.elapsedRealtime();
             Log.i(Helper.TAG, "Sent via " + ident.host + "/" + ident.user +
                     " to " + TextUtils.join(", ", to));
 
@@ -1382,6 +1654,7 @@ public class ServiceSynchronize extends LifecycleService {
                         db.message().updateMessage(message);
                         Log.i(Helper.TAG, "Appending sent msgid=" + message.msgid);
                         EntityOperation.queue(db, message, EntityOperation.ADD); // Could already exist
+                        append = true;
                     }
                 }
 
@@ -1393,16 +1666,90 @@ public class ServiceSynchronize extends LifecycleService {
             EntityOperation.process(this);
         } catch (MessagingException ex) {
             db.identity().setIdentityError(ident.id, Helper.formatThrowable(ex));
+            // The session might be in an undefined state
+            closeTransport(ident.id);
             throw ex;
         } finally {
+            if (!append)
+                spool.delete();
+        }
+    }
+
+    private CachedTransport getTransport(EntityIdentity ident, DB db) throws MessagingException {
+        synchronized (transports) {
+            CachedTransport cached = transports.get(ident.id);
+            if (cached != null) {
+                // Checking the connection sends a NOOP, which is much cheaper than a new session
+                if (SystemClock.elapsedRealtime() - cached.used < TRANSPORT_IDLE_TIMEOUT &&
+                        cached.itransport.isConnected()) {
+                    Log.i(Helper.TAG, "Reusing transport " + ident.host + "/" + ident.user);
+                    return cached;
+                }
+                closeTransport(ident.id);
+            }
+
+            // Create session
+            Properties props = MessageHelper.getSessionProperties(ident.auth_type);
+            cached = new CachedTransport();
+            cached.isession = Session.getInstance(props, null);
+
+            // Create transport
+            cached.itransport = cached.isession.getTransport(ident.starttls ? "smtp" : "smtps");
+
+            // Connect transport
+            db.identity().setIdentityState(ident.id, "connecting");
             try {
-                itransport.close();
-            } finally {
+                try {
+                    cached.itransport.connect(ident.host, ident.port, ident.user, ident.password);
+                } catch (AuthenticationFailedException ex) {
+                    if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
+                        EntityAccount account = db.account().getAccount(ident.account);
+                        ident.password = Helper.refreshToken(this, "com.google", ident.user, account.password);
+                        DB.getInstance(this).identity().setIdentityPassword(ident.id, ident.password);
+                        cached.itransport.connect(ident.host, ident.port, ident.user, ident.password);
+                    } else
+                        throw ex;
+                }
+            } catch (MessagingException ex) {
                 db.identity().setIdentityState(ident.id, null);
+                throw ex;
+            }
+            db.identity().setIdentityState(ident.id, "connected");
+            db.identity().setIdentityError(ident.id, null);
+
+            cached.used = SystemClock.elapsedRealtime();
+            transports.put(ident.id, cached);
+            return cached;
+        }
+    }
+
+    private void closeTransport(long id) {
+        synchronized (transports) {
+            CachedTransport cached = transports.remove(id);
+            if (cached == null)
+                return;
+
+            try {
+                cached.itransport.close();
+            } catch (Throwable ex) {
+                Log.w(Helper.TAG, "Transport " + ex + "\n" + Log.getStackTraceString(ex));
+            } finally {
+                DB.getInstance(this).identity().setIdentityState(id, null);
             }
         }
     }
 
+    private void closeTransports(boolean idle) {
+        synchronized (transports) {
+            long now = SystemClock.elapsedRealtime();
+            for (Long id : new ArrayList<>(transports.keySet()))
+                if (!idle || now - transports.get(id).used >= TRANSPORT_IDLE_TIMEOUT) {
+                    Log.i(Helper.TAG, "Closing transport identity=" + id);
+                    closeTransport(id);
+                }
+        }
+    }
+
     private void doHeaders(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, DB db) throws MessagingException {
         Message imessage = ifolder.getMessageByUID(message.uid);
         if (imessage == null)
@@ -1428,8 +1775,15 @@ public class ServiceSynchronize extends LifecycleService {
             throw new MessageRemovedException();
 
         MessageHelper helper = new MessageHelper((MimeMessage) imessage);
-        message.write(this, helper.getHtml());
+        StringBuilder start = new StringBuilder();
+        if (!helper.writeHtml(EntityMessage.getFile(this, message.id), start)) {
+            Log.i(Helper.TAG, folder.name + " no text id=" + message.id);
+            return;
+        }
         db.message().setMessageContent(message.id, true);
+        message.index(this, start.toString());
+        if (TextUtils.isEmpty(message.preview)) // partial preview might be empty
+            db.message().setMessagePreview(message.id, EntityMessage.getPreview(this, message.id));
     }
 
     private void doAttachment(EntityFolder folder, EntityOperation op, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws JSONException, MessagingException, IOException {
@@ -1447,10 +1801,20 @@ public class ServiceSynchronize extends LifecycleService {
             throw new MessageRemovedException();
 
         // Download attachment
-        MessageHelper helper = new MessageHelper((MimeMessage) imessage);
-        EntityAttachment a = helper.getAttachments().get(sequence - 1);
-        attachment.part = a.part;
-        attachment.download(this, db);
+        if (attachment.section == null) {
+            // Stored before the section was known
+            MessageHelper helper = new MessageHelper((MimeMessage) imessage);
+            EntityAttachment a = helper.getAttachments().get(sequence - 1);
+            attachment.part = a.part;
+            attachment.download(this, db);
+        } else
+            attachment.download(this, db, getSection((IMAPMessage) imessage, attachment));
+    }
+
+    private static InputStream getSection(IMAPMessage imessage, EntityAttachment attachment) throws MessagingException {
+        // BODY.PEEK[section] in blocks, without fetching the body structure
+        InputStream is = new IMAPInputStream(imessage, attachment.section, -1, true);
+        return (attachment.encoding == null ? is : MimeUtility.decode(is, attachment.encoding));
     }
 
     private void synchronizeFolders(EntityAccount account, IMAPStore istore, ServiceState state) throws MessagingException {
@@ -1507,6 +1871,102 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
+    private boolean synchronizeNew(EntityAccount account, EntityFolder folder, IMAPFolder ifolder, ServiceState state) throws MessagingException, IOException {
+        // Fetch messages arrived since the last synchronization, before reconciling the whole window
+        // - returns false when a full synchronization is needed right away
+        DB db = DB.getInstance(this);
+        EntityFolder stored = db.folder().getFolder(folder.id);
+        long uidv = ifolder.getUIDValidity();
+        long uidnext = ifolder.getUIDNext();
+        Log.i(Helper.TAG, folder.name + " uidnext=" + uidnext + "/" + stored.uidnext);
+
+        if (stored.uidv == null || stored.uidv != uidv || stored.uidnext == null)
+            return false;
+        if (uidnext <= stored.uidnext)
+            return true;
+
+        long start = SystemClock.elapsedRealtime();
+        long ago = getSyncAgo(folder);
+        int failed = 0;
+
+        // UID FETCH last+1:* will return the last message when there are no new messages
+        List<Message> inew = new ArrayList<>();
+        for (Message imessage : ifolder.getMessagesByUID(stored.uidnext, UIDFolder.LASTUID))
+            if (imessage != null && ifolder.getUID(imessage) >= stored.uidnext)
+                inew.add(imessage);
+        Log.i(Helper.TAG, folder.name + " remote new=" + inew.size());
+
+        if (inew.size() > 0) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.ENVELOPE);
+            fp.add(FetchProfile.Item.FLAGS);
+            fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            for (String header : MessageHelper.FETCH_HEADERS)
+                fp.add(header); // not all headers
+            fp.add(FetchProfile.Item.SIZE);
+            fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+            ifolder.fetch(inew.toArray(new Message[0]), fp);
+            ContactCache.prefetch(this, inew.toArray(new Message[0]));
+
+            for (int i = inew.size() - 1; i >= 0; i--) {
+                if (!state.running)
+                    return false;
+
+                IMAPMessage imessage = (IMAPMessage) inew.get(i);
+                try {
+                    // Skip messages outside the sync window
+                    if (imessage.getReceivedDate().getTime() < ago)
+                        continue;
+
+                    long id;
+                    try {
+                        db.beginTransaction();
+                        id = synchronizeMessage(this, folder, ifolder, imessage, false);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    downloadMessage(this, folder, ifolder, imessage, id);
+                } catch (MessageRemovedException ex) {
+                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                } catch (FolderClosedException ex) {
+                    throw ex;
+                } catch (FolderClosedIOException ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    failed++;
+                }
+            }
+        }
+
+        // Failed messages are fetched again from the previous uidnext
+        if (failed == 0)
+            db.folder().setFolderUidNext(folder.id, uidnext);
+
+        Log.i(Helper.TAG, folder.name + " synchronized new=" + inew.size() + " failed=" + failed +
+                " " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        return (failed == 0);
+    }
+
+    private static long getSyncAgo(EntityFolder folder) {
+        // Start of the sync window
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_MONTH, -folder.after);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        long ago = cal.getTimeInMillis();
+        if (ago < 0)
+            ago = 0;
+
+        return ago;
+    }
+
     private void synchronizeMessages(EntityAccount account, EntityFolder folder, IMAPFolder ifolder, ServiceState state) throws MessagingException, IOException {
         DB db = DB.getInstance(this);
         try {
@@ -1515,121 +1975,249 @@ public class ServiceSynchronize extends LifecycleService {
             db.folder().setFolderState(folder.id, "syncing");
 
             // Get reference times
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DAY_OF_MONTH, -folder.after);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-
-            long ago = cal.getTimeInMillis();
-            if (ago < 0)
-                ago = 0;
-
+            long ago = getSyncAgo(folder);
             Log.i(Helper.TAG, folder.name + " ago=" + new Date(ago));
 
             // Delete old local messages
             int old = db.message().deleteMessagesBefore(folder.id, ago);
             Log.i(Helper.TAG, folder.name + " local old=" + old);
 
-            // Get list of local uids
-            List<Long> uids = db.message().getUids(folder.id, ago);
-            Log.i(Helper.TAG, folder.name + " local count=" + uids.size());
-
-            // Reduce list of local uids
-            long search = SystemClock.elapsedRealtime();
-            Message[] imessages = ifolder.search(new ReceivedDateTerm(ComparisonTerm.GE, new Date(ago)));
-            Log.i(Helper.TAG, folder.name + " remote count=" + imessages.length +
-                    " search=" + (SystemClock.elapsedRealtime() - search) + " ms");
+            // Get remote state
+            // https://tools.ietf.org/html/rfc7162
+            EntityFolder stored = db.folder().getFolder(folder.id);
+            IMAPStore istore = (IMAPStore) ifolder.getStore();
+            long uidv = ifolder.getUIDValidity();
+            long uidnext = ifolder.getUIDNext();
+            long modseq = (istore.hasCapability("CONDSTORE") ? ifolder.getHighestModSeq() : -1);
+            Log.i(Helper.TAG, folder.name + " uidv=" + uidv + "/" + stored.uidv +
+                    " modseq=" + modseq + "/" + stored.modseq);
+
+            if (stored.uidv != null && stored.uidv != uidv) {
+                // UIDs of local messages are meaningless now
+                int count = db.message().deleteLocalMessages(folder.id);
+                Log.i(Helper.TAG, folder.name + " uidv changed deleted=" + count);
+                db.folder().setFolderModSeq(folder.id, null);
+                db.folder().setFolderUidNext(folder.id, null);
+                stored.modseq = null;
+            }
 
             FetchProfile fp = new FetchProfile();
             fp.add(UIDFolder.FetchProfileItem.UID);
             fp.add(FetchProfile.Item.FLAGS);
-            ifolder.fetch(imessages, fp);
-
-            long fetch = SystemClock.elapsedRealtime();
-            Log.i(Helper.TAG, folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms");
 
-            for (Message imessage : imessages) {
-                if (!state.running)
-                    return;
+            SyncPacer pacer = new SyncPacer();
+            int failed = 0;
+
+            if (modseq > 0 && stored.modseq != null) {
+                // Expunged messages are handled on open (VANISHED) or by the message count listener
+                long search = SystemClock.elapsedRealtime();
+                long[] changed = (modseq == stored.modseq ? new long[0]
+                        : searchUids(ifolder, new ModifiedSinceTerm(stored.modseq)));
+                Log.i(Helper.TAG, folder.name + " remote changed=" + changed.length +
+                        " since=" + stored.modseq + " search=" + (SystemClock.elapsedRealtime() - search) + " ms");
+
+                fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+
+                // Update/add in windows of uids, newest first
+                for (int[] range : Helper.getWindows(changed.length, SYNC_WINDOW_SIZE)) {
+                    if (!state.running)
+                        return;
+
+                    int from = range[0];
+                    int to = range[1];
+                    Log.i(Helper.TAG, folder.name + " changed window " + from + " .. " + to);
+
+                    long[] wuids = Arrays.copyOfRange(changed, from, to + 1);
+                    Message[] iwindow = ifolder.getMessagesByUID(wuids);
+                    List<Message> existing = new ArrayList<>();
+                    for (Message imessage : iwindow)
+                        if (imessage != null) // expunged
+                            existing.add(imessage);
+                    ifolder.fetch(existing.toArray(new Message[0]), fp);
+
+                    // Skip new messages outside the sync window
+                    Map<Long, EntityMessage> local = getMessagesByUid(this, folder, wuids);
+                    List<Message> window = new ArrayList<>();
+                    for (int j = 0; j < iwindow.length; j++)
+                        try {
+                            if (iwindow[j] != null &&
+                                    (iwindow[j].getReceivedDate().getTime() >= ago || local.containsKey(wuids[j])))
+                                window.add(iwindow[j]);
+                        } catch (MessageRemovedException ex) {
+                            Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        }
 
-                try {
-                    uids.remove(ifolder.getUID(imessage));
-                } catch (MessageRemovedException ex) {
-                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                } catch (Throwable ex) {
-                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                    reportError(account.name, folder.name, ex);
+                    int count = synchronizeWindow(folder, ifolder, window.toArray(new Message[0]), pacer, state);
+                    if (count < 0)
+                        return;
+                    failed += count;
+                }
+            } else {
+                // Get list of local uids (sorted)
+                long[] uids = Helper.toLongArray(db.message().getUids(folder.id, ago));
+                Log.i(Helper.TAG, folder.name + " local count=" + uids.length);
+
+                // Get list of remote uids (sorted)
+                // - message objects are created per window only
+                long search = SystemClock.elapsedRealtime();
+                long[] remote = searchUids(ifolder, new ReceivedDateTerm(ComparisonTerm.GE, new Date(ago)));
+                Log.i(Helper.TAG, folder.name + " remote count=" + remote.length +
+                        " search=" + (SystemClock.elapsedRealtime() - search) + " ms");
+
+                // Reduce list of local uids (linear merge)
+                uids = Helper.except(uids, remote);
+
+                // Delete local messages not at remote
+                Log.i(Helper.TAG, folder.name + " delete=" + uids.length);
+                for (long uid : uids) {
+                    int deleted = db.message().deleteMessage(folder.id, uid);
+                    Log.i(Helper.TAG, folder.name + " delete local uid=" + uid + " count=" + deleted);
+                }
 
-                    db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                // Add/update/download in windows of uids, newest first
+                for (int[] range : Helper.getWindows(remote.length, SYNC_WINDOW_SIZE)) {
+                    if (!state.running)
+                        return;
+
+                    int from = range[0];
+                    int to = range[1];
+                    Log.i(Helper.TAG, folder.name + " window " + from + " .. " + to);
+
+                    List<Message> window = new ArrayList<>();
+                    for (Message imessage : ifolder.getMessagesByUID(Arrays.copyOfRange(remote, from, to + 1)))
+                        if (imessage != null) // expunged
+                            window.add(imessage);
+                    Message[] imessages = window.toArray(new Message[0]);
+
+                    long fetch = SystemClock.elapsedRealtime();
+                    ifolder.fetch(imessages, fp);
+                    Log.i(Helper.TAG, folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms");
+
+                    int count = synchronizeWindow(folder, ifolder, imessages, pacer, state);
+                    if (count < 0)
+                        return;
+                    failed += count;
                 }
             }
 
-            // Delete local messages not at remote
-            Log.i(Helper.TAG, folder.name + " delete=" + uids.size());
-            for (Long uid : uids) {
-                int count = db.message().deleteMessage(folder.id, uid);
-                Log.i(Helper.TAG, folder.name + " delete local uid=" + uid + " count=" + count);
-            }
+            // Remember state for the next incremental synchronization
+            // - failed messages are retried by synchronizing from the previous modseq again
+            Log.i(Helper.TAG, folder.name + " failed=" + failed);
+            db.folder().setFolderUidValidity(folder.id, uidv);
+            if (failed == 0)
+                db.folder().setFolderModSeq(folder.id, modseq > 0 ? modseq : null);
+            db.folder().setFolderUidNext(folder.id, uidnext > 0 ? uidnext : null);
+
+        } finally {
+            Log.v(Helper.TAG, folder.name + " end sync");
+            db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
+        }
+    }
+
+    private int synchronizeWindow(EntityFolder folder, IMAPFolder ifolder, Message[] imessages, SyncPacer pacer, ServiceState state) throws MessagingException, IOException {
+        // Returns the number of messages which could not be stored or downloaded, or -1 when stopped
+        DB db = DB.getInstance(this);
+        int failed = 0;
+        try {
+            db.folder().setFolderState(folder.id, "syncing");
 
+            FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.ENVELOPE);
-            // fp.add(FetchProfile.Item.FLAGS);
+            fp.add(FetchProfile.Item.FLAGS);
             fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
-            // fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            for (String header : MessageHelper.FETCH_HEADERS)
+                fp.add(header); // not all headers
             // fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
             fp.add(FetchProfile.Item.SIZE);
             fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
 
             // Add/update local messages
+            // - fetch batches in the background while storing the previous batch
             Long[] ids = new Long[imessages.length];
             Log.i(Helper.TAG, folder.name + " add=" + imessages.length);
-            for (int i = imessages.length - 1; i >= 0; i -= SYNC_BATCH_SIZE) {
-                int from = Math.max(0, i - SYNC_BATCH_SIZE + 1);
-                //Log.i(Helper.TAG, folder.name + " update " + from + " .. " + i);
+            BlockingQueue<SyncBatch> batches = new ArrayBlockingQueue<>(SYNC_PIPELINE_SIZE);
+            Thread fetcher = fetchBatches(folder, ifolder, imessages, fp, batches);
+            try {
+                while (true) {
+                    SyncBatch batch;
+                    try {
+                        batch = batches.take();
+                    } catch (InterruptedException ex) {
+                        Log.w(Helper.TAG, folder.name + " sync " + ex.toString());
+                        return -1;
+                    }
 
-                Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
+                    if (batch.ex instanceof MessagingException)
+                        throw (MessagingException) batch.ex;
+                    else if (batch.ex instanceof IOException)
+                        throw (IOException) batch.ex;
+                    else if (batch.ex != null)
+                        throw new MessagingException(Helper.formatThrowable(batch.ex), new Exception(batch.ex));
 
-                // Full fetch new/changed messages only
-                List<Message> full = new ArrayList<>();
-                for (Message imessage : isub) {
-                    long uid = ifolder.getUID(imessage);
-                    EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                    if (message == null)
-                        full.add(imessage);
-                }
-                if (full.size() > 0) {
-                    long headers = SystemClock.elapsedRealtime();
-                    ifolder.fetch(full.toArray(new Message[0]), fp);
-                    Log.i(Helper.TAG, folder.name + " fetched headers=" + full.size() +
-                            " " + (SystemClock.elapsedRealtime() - headers) + " ms");
-                }
+                    if (batch.isub == null)
+                        break;
 
-                for (int j = isub.length - 1; j >= 0; j--)
+                    // The folder is not used here, because the fetcher holds its lock while fetching
+                    int from = batch.from;
+                    Message[] isub = batch.isub;
+                    long[] uids = batch.uids;
+                    Map<Long, EntityMessage> local = batch.local;
+
+                    if (!state.scheduler.yield())
+                        return -1;
+
+                    // Store batch in one transaction
+                    boolean batched = false;
                     try {
-                        db.beginTransaction();
-                        ids[from + j] = synchronizeMessage(this, folder, ifolder, (IMAPMessage) isub[j], false);
+                        pacer.beginTransaction(db);
+                        for (int j = isub.length - 1; j >= 0; j--)
+                            if (uids[j] >= 0) // else removed
+                                ids[from + j] = synchronizeMessage(this, folder, (IMAPMessage) isub[j], false,
+                                        uids[j], local.get(uids[j]));
                         db.setTransactionSuccessful();
-                        Thread.sleep(20);
-                    } catch (MessageRemovedException ex) {
-                        Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        batched = true;
                     } catch (FolderClosedException ex) {
                         throw ex;
                     } catch (FolderClosedIOException ex) {
                         throw ex;
                     } catch (Throwable ex) {
-                        Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        // Includes removed messages
+                        Log.w(Helper.TAG, folder.name + " batch failed " + ex);
                     } finally {
                         db.endTransaction();
-                        // Reduce memory usage
-                        ((IMAPMessage) isub[j]).invalidateHeaders();
                     }
 
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ignored) {
+                    // Batch was rolled back: store messages one by one
+                    if (!batched) {
+                        Arrays.fill(ids, from, from + isub.length, null);
+                        for (int j = isub.length - 1; j >= 0; j--)
+                            try {
+                                if (uids[j] < 0)
+                                    continue;
+                                db.beginTransaction();
+                                ids[from + j] = synchronizeMessage(this, folder, (IMAPMessage) isub[j], false,
+                                        uids[j], db.message().getMessageByUid(folder.id, uids[j]));
+                                db.setTransactionSuccessful();
+                            } catch (MessageRemovedException ex) {
+                                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                            } catch (FolderClosedException ex) {
+                                throw ex;
+                            } catch (FolderClosedIOException ex) {
+                                throw ex;
+                            } catch (Throwable ex) {
+                                Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                failed++;
+                            } finally {
+                                db.endTransaction();
+                            }
+                    }
+
+                    pacer.pace();
                 }
+            } finally {
+                fetcher.interrupt();
+                join(fetcher);
             }
 
             db.folder().setFolderState(folder.id, "downloading");
@@ -1648,35 +2236,189 @@ public class ServiceSynchronize extends LifecycleService {
                 for (int j = isub.length - 1; j >= 0; j--)
                     try {
                         //Log.i(Helper.TAG, folder.name + " download index=" + (from + j) + " id=" + ids[from + j]);
-                        if (ids[from + j] != null) {
+                        if (!state.scheduler.yield())
+                            return -1;
+                        if (ids[from + j] != null)
                             downloadMessage(this, folder, ifolder, (IMAPMessage) isub[j], ids[from + j]);
-                            Thread.sleep(20);
-                        }
                     } catch (FolderClosedException ex) {
                         throw ex;
                     } catch (FolderClosedIOException ex) {
                         throw ex;
                     } catch (Throwable ex) {
                         Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        failed++;
                     } finally {
-                        // Free memory
+                        // Free memory, the headers were kept for downloading
                         ((IMAPMessage) isub[j]).invalidateHeaders();
                     }
 
+                pacer.pace();
+                if (Thread.currentThread().isInterrupted())
+                    return -1;
+            }
+
+            return failed;
+        } finally {
+            // Free memory of message objects of window
+            for (Message imessage : imessages)
+                ((IMAPMessage) imessage).invalidateHeaders();
+        }
+    }
+
+    private Thread fetchBatches(
+            final EntityFolder folder, final IMAPFolder ifolder, final Message[] imessages, final FetchProfile fp,
+            final BlockingQueue<SyncBatch> batches) {
+        // The bounded queue limits the number of fetched batches in memory
+        Thread fetcher = Helper.backgroundThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ignored) {
+                    try {
+                        for (int i = imessages.length - 1; i >= 0; i -= SYNC_BATCH_SIZE) {
+                            int from = Math.max(0, i - SYNC_BATCH_SIZE + 1);
+                            //Log.i(Helper.TAG, folder.name + " update " + from + " .. " + i);
+
+                            SyncBatch batch = new SyncBatch();
+                            batch.from = from;
+                            batch.isub = Arrays.copyOfRange(imessages, from, i + 1);
+
+                            // Resolve uids here, because getting a uid requires the folder lock
+                            batch.uids = new long[batch.isub.length];
+                            for (int j = 0; j < batch.isub.length; j++)
+                                try {
+                                    batch.uids[j] = ifolder.getUID(batch.isub[j]);
+                                } catch (MessageRemovedException ex) {
+                                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                    batch.uids[j] = -1;
+                                }
+
+                            // Get local messages of batch with one query
+                            batch.local = getMessagesByUid(ServiceSynchronize.this, folder, batch.uids);
+
+                            // Full fetch new/changed messages only
+                            List<Message> full = new ArrayList<>();
+                            for (int j = 0; j < batch.isub.length; j++)
+                                if (batch.uids[j] >= 0 && !batch.local.containsKey(batch.uids[j]))
+                                    full.add(batch.isub[j]);
+                            if (full.size() > 0) {
+                                long headers = SystemClock.elapsedRealtime();
+                                long rx = TrafficStats.getUidRxBytes(Process.myUid());
+                                ifolder.fetch(full.toArray(new Message[0]), fp);
+                                Log.i(Helper.TAG, folder.name + " fetched headers=" + full.size() +
+                                        " " + (SystemClock.elapsedRealtime() - headers) + " ms" +
+                                        " ~" + (TrafficStats.getUidRxBytes(Process.myUid()) - rx) + " bytes");
+                                ContactCache.prefetch(ServiceSynchronize.this, full.toArray(new Message[0]));
+                            }
+
+                            batches.put(batch);
+                        }
+
+                        batches.put(new SyncBatch()); // end
+                    } catch (InterruptedException ex) {
+                        Log.i(Helper.TAG, folder.name + " fetch " + ex.toString());
+                    } catch (Throwable ex) {
+                        SyncBatch error = new SyncBatch();
+                        error.ex = ex;
+                        batches.put(error);
+                    }
+                } catch (InterruptedException ex) {
+                    Log.i(Helper.TAG, folder.name + " fetch " + ex.toString());
                 }
             }
+        });
+        fetcher.setName("sync.fetch." + folder.id);
+        fetcher.start();
+        return fetcher;
+    }
 
-        } finally {
-            Log.v(Helper.TAG, folder.name + " end sync");
-            db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
+    static long[] searchUids(IMAPFolder ifolder, final SearchTerm term) throws MessagingException {
+        // UID SEARCH returns uids only, without creating message objects
+        return (long[]) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Argument args = new Argument();
+                if (term == null)
+                    args.writeAtom("ALL");
+                else
+                    try {
+                        if (!SearchSequence.isAscii(term)) {
+                            args.writeAtom("CHARSET");
+                            args.writeAtom("UTF-8");
+                            args.append(new SearchSequence(protocol).generateSequence(term, "UTF-8"));
+                        } else
+                            args.append(new SearchSequence(protocol).generateSequence(term, null));
+                    } catch (Throwable ex) {
+                        throw new ProtocolException(ex.toString(), ex);
+                    }
+
+                Response[] responses = protocol.command("UID SEARCH", args);
+                Response response = responses[responses.length - 1];
+
+                long[] uids = new long[0];
+                int count = 0;
+                if (response.isOK())
+                    for (int i = 0; i < responses.length - 1; i++) {
+                        if (!(responses[i] instanceof IMAPResponse))
+                            continue;
+                        IMAPResponse ir = (IMAPResponse) responses[i];
+                        if (ir.keyEquals("SEARCH")) {
+                            long uid;
+                            while ((uid = ir.readLong()) != -1) {
+                                if (count == uids.length)
+                                    uids = Arrays.copyOf(uids, Math.max(16, count * 2));
+                                uids[count++] = uid;
+                            }
+                            responses[i] = null;
+                        }
+                    }
+
+                protocol.notifyResponseHandlers(responses);
+                protocol.handleResult(response);
+
+                uids = Arrays.copyOf(uids, count);
+                Arrays.sort(uids);
+                return uids;
+            }
+        });
+    }
+
+    static Map<Long, EntityMessage> getMessagesByUid(Context context, EntityFolder folder, IMAPFolder ifolder, Message[] imessages) throws MessagingException {
+        long[] uids = new long[imessages.length];
+        for (int i = 0; i < imessages.length; i++)
+            try {
+                uids[i] = ifolder.getUID(imessages[i]);
+            } catch (MessageRemovedException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                uids[i] = -1;
+            }
+        return getMessagesByUid(context, folder, uids);
+    }
+
+    static Map<Long, EntityMessage> getMessagesByUid(Context context, EntityFolder folder, long[] uids) {
+        // uids: -1 for removed messages
+        List<Long> list = new ArrayList<>();
+        for (long uid : uids)
+            if (uid >= 0)
+                list.add(uid);
+
+        Map<Long, EntityMessage> result = new HashMap<>();
+        if (list.size() > 0) {
+            DB db = DB.getInstance(context);
+            for (EntityMessage message : db.message().getMessagesByUid(folder.id, list))
+                result.put(message.uid, message);
         }
+        return result;
     }
 
     static Long synchronizeMessage(Context context, EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, boolean found) throws MessagingException, IOException {
         long uid = ifolder.getUID(imessage);
+        EntityMessage message = DB.getInstance(context).message().getMessageByUid(folder.id, uid);
+        return synchronizeMessage(context, folder, imessage, found, uid, message);
+    }
+
+    static Long synchronizeMessage(Context context, EntityFolder folder, IMAPMessage imessage, boolean found, long uid, EntityMessage message) throws MessagingException, IOException {
+        // uid and message: resolved by the caller, so that the folder lock is not needed
+        // - message: local message with the same uid or null
 
         if (imessage.isExpunged()) {
             Log.i(Helper.TAG, folder.name + " expunged uid=" + uid);
@@ -1693,9 +2435,6 @@ public class ServiceSynchronize extends LifecycleService {
 
         DB db = DB.getInstance(context);
 
-        // Find message by uid (fast, no headers required)
-        EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-
         // Find message by Message-ID (slow, headers required)
         // - messages in inbox have same id as message sent to self
         // - messages in archive have same id as original
@@ -1757,45 +2496,20 @@ public class ServiceSynchronize extends LifecycleService {
             message.ui_found = found;
             message.ui_ignored = false;
 
-            if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
-                    == PackageManager.PERMISSION_GRANTED) {
-                try {
-                    if (message.from != null)
-                        for (int i = 0; i < message.from.length; i++) {
-                            String email = ((InternetAddress) message.from[i]).getAddress();
-                            Cursor cursor = null;
-                            try {
-                                ContentResolver resolver = context.getContentResolver();
-                                cursor = resolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
-                                        new String[]{
-                                                ContactsContract.CommonDataKinds.Photo.CONTACT_ID,
-                                                ContactsContract.Contacts.DISPLAY_NAME
-                                        },
-                                        ContactsContract.CommonDataKinds.Email.ADDRESS + " = ?",
-                                        new String[]{email}, null);
-                                if (cursor.moveToNext()) {
-                                    int colContactId = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Photo.CONTACT_ID);
-                                    int colDisplayName = cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
-                                    long contactId = cursor.getLong(colContactId);
-                                    String displayName = cursor.getString(colDisplayName);
-
-                                    Uri uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
-                                    message.avatar = uri.toString();
-
-                                    if (!TextUtils.isEmpty(displayName))
-                                        ((InternetAddress) message.from[i]).setPersonal(displayName);
-                                }
-                            } finally {
-                                if (cursor != null)
-                                    cursor.close();
-                            }
-                        }
-                } catch (Throwable ex) {
-                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            // Contacts are normally prefetched outside of the database transaction
+            if (message.from != null)
+                for (int i = 0; i < message.from.length; i++) {
+                    ContactCache.Contact contact =
+                            ContactCache.lookup(context, ((InternetAddress) message.from[i]).getAddress());
+                    if (contact != null) {
+                        message.avatar = contact.getUri();
+                        if (!TextUtils.isEmpty(contact.name))
+                            ((InternetAddress) message.from[i]).setPersonal(contact.name);
+                    }
                 }
-            }
 
             message.id = db.message().insertMessage(message);
+            message.index(context, null); // body not downloaded yet
 
             Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
 
@@ -1813,23 +2527,27 @@ public class ServiceSynchronize extends LifecycleService {
                 attachment.id = db.attachment().insertAttachment(attachment);
             }
         } else {
+            // The local message might have been looked up before the transaction was started
+            // - update only the synchronized fields, not the whole row
             if (message.seen != seen || message.seen != message.ui_seen) {
                 message.seen = seen;
                 message.ui_seen = seen;
-                db.message().updateMessage(message);
+                db.message().setMessageSeen(message.id, seen);
+                db.message().setMessageUiSeen(message.id, seen);
                 Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
             }
 
             if (message.flagged != flagged || message.flagged != message.ui_flagged) {
                 message.flagged = flagged;
                 message.ui_flagged = flagged;
-                db.message().updateMessage(message);
+                db.message().setMessageFlagged(message.id, flagged);
+                db.message().setMessageUiFlagged(message.id, flagged);
                 Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " flagged=" + flagged);
             }
 
             if (message.ui_hide) {
                 message.ui_hide = false;
-                db.message().updateMessage(message);
+                db.message().setMessageUiHide(message.id, false);
                 Log.i(Helper.TAG, folder.name + " unhidden id=" + message.id + " uid=" + message.uid);
             }
         }
@@ -1868,29 +2586,49 @@ public class ServiceSynchronize extends LifecycleService {
             fp.add(FetchProfile.Item.FLAGS);
             fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
             fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-            fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+            for (String header : MessageHelper.FETCH_HEADERS)
+                fp.add(header); // not all headers
             fp.add(FetchProfile.Item.SIZE);
             fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
-            ifolder.fetch(new Message[]{imessage}, fp);
+            ifolder.fetch(new Message[]{imessage}, fp); // nothing when already fetched
         }
 
         if (!message.content)
             if (!metered || (message.size != null && message.size < MESSAGE_AUTO_DOWNLOAD_SIZE)) {
-                message.write(context, helper.getHtml());
-                db.message().setMessageContent(message.id, true);
-                Log.i(Helper.TAG, folder.name + " downloaded message id=" + message.id + " size=" + message.size);
+                StringBuilder start = new StringBuilder();
+                if (helper.writeHtml(EntityMessage.getFile(context, message.id), start)) {
+                    message.content = true;
+                    db.message().setMessageContent(message.id, true);
+                    message.index(context, start.toString());
+                    if (TextUtils.isEmpty(message.preview)) { // partial preview might be empty
+                        message.preview = EntityMessage.getPreview(context, message.id);
+                        db.message().setMessagePreview(message.id, message.preview);
+                    }
+                    Log.i(Helper.TAG, folder.name + " downloaded message id=" + message.id + " size=" + message.size);
+                } else
+                    Log.i(Helper.TAG, folder.name + " no text id=" + message.id);
             }
 
+        // Partially fetch a preview of messages which are not downloaded
+        if (message.preview == null && !message.content) {
+            String preview = helper.getPreview(ifolder);
+            db.message().setMessagePreview(message.id, preview == null ? "" : preview);
+            Log.i(Helper.TAG, folder.name + " preview message id=" + message.id);
+        }
+
         List<EntityAttachment> iattachments = null;
         for (int i = 0; i < attachments.size(); i++) {
             EntityAttachment attachment = attachments.get(i);
             if (!attachment.available)
                 if (!metered || (attachment.size != null && attachment.size < ATTACHMENT_AUTO_DOWNLOAD_SIZE)) {
-                    if (iattachments == null)
-                        iattachments = helper.getAttachments();
-                    attachment.part = iattachments.get(i).part;
-                    attachment.download(context, db);
+                    if (attachment.section != null)
+                        attachment.download(context, db, getSection(imessage, attachment));
+                    else {
+                        if (iattachments == null)
+                            iattachments = helper.getAttachments();
+                        attachment.part = iattachments.get(i).part;
+                        attachment.download(context, db);
+                    }
                     Log.i(Helper.TAG, folder.name + " downloaded message id=" + message.id + " attachment=" + attachment.name + " size=" + message.size);
                 }
         }
@@ -1902,7 +2640,7 @@ public class ServiceSynchronize extends LifecycleService {
         private long lastLost = 0;
         private EntityFolder outbox = null;
         private ExecutorService lifecycle = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
-        private ExecutorService executor = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
+        private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(Helper.backgroundThreadFactory);
 
         @Override
         public void onAvailable(Network network) {
@@ -2046,6 +2784,14 @@ public class ServiceSynchronize extends LifecycleService {
                         Log.i(Helper.TAG, outbox.name + " unlisten operations");
                         db.folder().setFolderState(outbox.id, null);
 
+                        // Close transports
+                        executor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                closeTransports(false);
+                            }
+                        });
+
                         EntityLog.log(ServiceSynchronize.this, "Main exited");
                     } catch (Throwable ex) {
                         // Fail-safe
@@ -2147,6 +2893,14 @@ public class ServiceSynchronize extends LifecycleService {
                             } finally {
                                 Log.i(Helper.TAG, outbox.name + " end operations");
                                 db.folder().setFolderState(outbox.id, null);
+
+                                // Close transports when no more messages were sent
+                                executor.schedule(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        closeTransports(true);
+                                    }
+                                }, TRANSPORT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
                             }
                         } finally {
                             wl.release();
@@ -2204,5 +2958,106 @@ public class ServiceSynchronize extends LifecycleService {
     private class ServiceState {
         boolean running = true;
         Thread thread;
+        DownloadScheduler scheduler;
+    }
+
+    private static class DownloadScheduler {
+        // Per account: one thread for operations and one for background synchronization
+        static final int PRIORITY_USER = 0; // content requested by the user
+        static final int PRIORITY_OPERATIONS = 1; // other operations of the user
+        static final int PRIORITY_BACKGROUND = 2; // synchronization and prefetching
+
+        private long sequence = 0;
+        private int urgent = 0; // queued or running tasks with user priority
+
+        private ExecutorService foreground = new ThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), Helper.backgroundThreadFactory);
+        private ExecutorService background = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
+
+        void submit(final int priority, final Runnable runnable) {
+            if (priority == PRIORITY_BACKGROUND) {
+                background.submit(runnable);
+                return;
+            }
+
+            final long order;
+            synchronized (this) {
+                order = sequence++;
+                if (priority == PRIORITY_USER)
+                    urgent++;
+            }
+
+            foreground.execute(new Task(priority, order) {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        if (priority == PRIORITY_USER)
+                            synchronized (DownloadScheduler.this) {
+                                urgent--;
+                                DownloadScheduler.this.notifyAll();
+                            }
+                    }
+                }
+            });
+        }
+
+        boolean yield() {
+            // Background downloads give way to content requested by the user
+            synchronized (this) {
+                long start = SystemClock.elapsedRealtime();
+                while (urgent > 0) {
+                    long wait = MessageHelper.NETWORK_TIMEOUT - (SystemClock.elapsedRealtime() - start);
+                    if (wait <= 0)
+                        break;
+                    Log.i(Helper.TAG, "Yielding to urgent=" + urgent);
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) {
+                        Log.w(Helper.TAG, "Yield " + ex.toString());
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void shutdown() {
+            foreground.shutdownNow();
+            background.shutdownNow();
+        }
+
+        private static abstract class Task implements Runnable, Comparable<Task> {
+            private int priority;
+            private long order;
+
+            Task(int priority, long order) {
+                this.priority = priority;
+                this.order = order;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (priority != other.priority)
+                    return Integer.compare(priority, other.priority);
+                return Long.compare(order, other.order);
+            }
+        }
+    }
+
+    private static class CachedTransport {
+        Session isession;
+        Transport itransport;
+        long used;
+    }
+
+    private static class SyncBatch {
+        int from;
+        Message[] isub = null; // null = end
+        long[] uids; // -1 = removed
+        Map<Long, EntityMessage> local;
+        Throwable ex = null;
     }
 }
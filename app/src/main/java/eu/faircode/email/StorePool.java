@@ -0,0 +1,272 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+// Process wide pool of authenticated IMAP stores, one per account
+// - the store of the synchronize service is shared while it is connected
+// - the number of folders opened by leasers is limited per account
+// - stores which are not leased are closed after an idle timeout
+public class StorePool {
+    private static final int MAX_FOLDERS = 3; // per account, besides the synchronized folders
+    private static final long IDLE_TIMEOUT = 3 * 60 * 1000L; // milliseconds, like connectionpooltimeout
+
+    private static final Map<Long, Entry> pool = new HashMap<>(); // account id > entry
+    private static final Map<IMAPStore, Entry> leased = new HashMap<>();
+    private static final Map<IMAPFolder, Semaphore> folders = new HashMap<>();
+    private static final Map<Long, Semaphore> limits = new HashMap<>(); // account id > open folders
+
+    private static int hits = 0;
+    private static int misses = 0;
+
+    private static ScheduledExecutorService evictor =
+            Executors.newSingleThreadScheduledExecutor(Helper.backgroundThreadFactory);
+
+    private static class Entry {
+        long account;
+        IMAPStore istore;
+        boolean shared; // owned by the synchronize service
+        int leases = 0;
+        long idle = SystemClock.elapsedRealtime();
+    }
+
+    static IMAPStore lease(Context context, EntityAccount account) throws MessagingException {
+        Entry broken = null;
+        synchronized (pool) {
+            Entry entry = pool.get(account.id);
+            if (entry != null && entry.istore.isConnected()) {
+                entry.leases++;
+                leased.put(entry.istore, entry);
+                hits++;
+                Log.i(Helper.TAG, "Pool hit account=" + account.name + " shared=" + entry.shared +
+                        " leases=" + entry.leases + " " + getStats());
+                return entry.istore;
+            }
+
+            if (entry != null) {
+                Log.i(Helper.TAG, "Pool evict disconnected account=" + account.name);
+                pool.remove(account.id);
+                if (entry.leases == 0 && !entry.shared)
+                    broken = entry;
+            }
+            misses++;
+        }
+
+        if (broken != null)
+            close(broken);
+
+        // Connect outside of the lock
+        Properties props = MessageHelper.getSessionProperties(account.auth_type);
+        props.setProperty("mail.imap.throwsearchexception", "true");
+        Session isession = Session.getInstance(props, null);
+        IMAPStore istore = (IMAPStore) isession.getStore("imaps");
+        Helper.connect(context, istore, account);
+
+        synchronized (pool) {
+            Entry entry = new Entry();
+            entry.account = account.id;
+            entry.istore = istore;
+            entry.leases = 1;
+            leased.put(istore, entry);
+            if (!pool.containsKey(account.id))
+                pool.put(account.id, entry);
+            Log.i(Helper.TAG, "Pool miss account=" + account.name + " " + getStats());
+        }
+
+        return istore;
+    }
+
+    static void release(IMAPStore istore) {
+        if (istore == null)
+            return;
+
+        Entry close = null;
+        synchronized (pool) {
+            Entry entry = leased.get(istore);
+            if (entry == null)
+                return;
+
+            entry.leases--;
+            if (entry.leases > 0)
+                return;
+
+            leased.remove(istore);
+            entry.idle = SystemClock.elapsedRealtime();
+
+            if (entry.shared)
+                return;
+
+            if (pool.get(entry.account) == entry && istore.isConnected())
+                evictor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        evict();
+                    }
+                }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            else
+                close = entry; // superseded or broken
+        }
+
+        if (close != null)
+            close(close);
+    }
+
+    static void share(EntityAccount account, IMAPStore istore) {
+        List<Entry> close = new ArrayList<>();
+        synchronized (pool) {
+            Entry existing = pool.get(account.id);
+            if (existing != null && existing.leases == 0 && !existing.shared)
+                close.add(existing);
+
+            Entry entry = new Entry();
+            entry.account = account.id;
+            entry.istore = istore;
+            entry.shared = true;
+            pool.put(account.id, entry);
+            Log.i(Helper.TAG, "Pool share account=" + account.name);
+        }
+
+        for (Entry entry : close)
+            close(entry);
+    }
+
+    static void unshare(EntityAccount account, IMAPStore istore) {
+        synchronized (pool) {
+            Entry entry = pool.get(account.id);
+            if (entry != null && entry.istore == istore) {
+                pool.remove(account.id);
+                Log.i(Helper.TAG, "Pool unshare account=" + account.name + " leases=" + entry.leases);
+            }
+            // Leasers of the shared store will get a closed store exception when it is closed
+        }
+    }
+
+    static IMAPFolder openFolder(IMAPStore istore, String name, int mode) throws MessagingException {
+        Semaphore limit;
+        synchronized (pool) {
+            Entry entry = leased.get(istore);
+            if (entry == null)
+                limit = new Semaphore(MAX_FOLDERS);
+            else {
+                limit = limits.get(entry.account);
+                if (limit == null) {
+                    limit = new Semaphore(MAX_FOLDERS);
+                    limits.put(entry.account, limit);
+                }
+            }
+        }
+
+        try {
+            if (!limit.tryAcquire(MessageHelper.NETWORK_TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new MessagingException("Too many open folders");
+        } catch (InterruptedException ex) {
+            throw new MessagingException(ex.toString(), ex);
+        }
+
+        IMAPFolder ifolder = (IMAPFolder) istore.getFolder(name);
+        try {
+            ifolder.open(mode);
+        } catch (MessagingException ex) {
+            limit.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            limit.release();
+            throw ex;
+        }
+
+        synchronized (pool) {
+            folders.put(ifolder, limit);
+        }
+        return ifolder;
+    }
+
+    static void closeFolder(IMAPFolder ifolder) {
+        if (ifolder == null)
+            return;
+
+        Semaphore limit;
+        synchronized (pool) {
+            limit = folders.remove(ifolder);
+        }
+
+        try {
+            if (ifolder.isOpen())
+                ifolder.close(false);
+        } catch (Throwable ex) {
+            Log.w(Helper.TAG, "Pool " + ex + "\n" + Log.getStackTraceString(ex));
+        } finally {
+            if (limit != null)
+                limit.release();
+        }
+    }
+
+    static String getStats() {
+        synchronized (pool) {
+            int total = hits + misses;
+            return "hits=" + hits + " misses=" + misses +
+                    " ratio=" + (total == 0 ? 0 : hits * 100 / total) + "%" +
+                    " stores=" + pool.size() + " leased=" + leased.size();
+        }
+    }
+
+    private static void evict() {
+        List<Entry> close = new ArrayList<>();
+        synchronized (pool) {
+            long now = SystemClock.elapsedRealtime();
+            for (Entry entry : new ArrayList<>(pool.values()))
+                if (!entry.shared && entry.leases == 0 && now - entry.idle >= IDLE_TIMEOUT) {
+                    pool.remove(entry.account);
+                    close.add(entry);
+                }
+        }
+
+        for (Entry entry : close) {
+            Log.i(Helper.TAG, "Pool evict idle account=" + entry.account);
+            close(entry);
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.istore.close();
+        } catch (Throwable ex) {
+            Log.w(Helper.TAG, "Pool " + ex + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+}
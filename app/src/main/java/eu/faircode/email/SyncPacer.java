@@ -0,0 +1,60 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Pacing of message synchronization
+// - back off only when others are waiting for the database
+class SyncPacer {
+    private long backoff = 0; // milliseconds
+
+    private static final long PACE_CONTENTION = 50L; // milliseconds
+    private static final long PACE_BACKOFF_START = 20L; // milliseconds
+    private static final long PACE_BACKOFF_MAX = 1000L; // milliseconds
+
+    void beginTransaction(DB db) {
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        long waited = SystemClock.elapsedRealtime() - start;
+
+        backoff = getBackoff(backoff, waited);
+        if (backoff > 0)
+            Log.i(Helper.TAG, "Sync waited=" + waited + " backoff=" + backoff);
+    }
+
+    void pace() {
+        if (backoff > 0)
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                // Let the caller see that it should stop
+                Thread.currentThread().interrupt();
+            }
+    }
+
+    static long getBackoff(long backoff, long waited) {
+        if (waited > PACE_CONTENTION)
+            return Math.min(PACE_BACKOFF_MAX, Math.max(PACE_BACKOFF_START, backoff * 2));
+        else
+            return backoff / 2;
+    }
+}
@@ -28,7 +28,6 @@ public class TupleMessageEx extends EntityMessage {
     public int count;
     public int unseen;
     public int unflagged;
-    public int attachments;
 
     @Override
     public boolean equals(Object obj) {
@@ -42,8 +41,7 @@ public class TupleMessageEx extends EntityMessage {
                     this.folderType.equals(other.folderType) &&
                     this.count == other.count &&
                     this.unseen == other.unseen &&
-                    this.unflagged == other.unflagged &&
-                    this.attachments == other.attachments);
+                    this.unflagged == other.unflagged);
         }
         return super.equals(obj);
     }
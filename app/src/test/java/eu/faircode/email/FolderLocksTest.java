@@ -0,0 +1,97 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FolderLocksTest {
+    @Test
+    public void lockPerFolder() {
+        FolderLocks locks = new FolderLocks();
+        assertSame(locks.get(1), locks.get(1));
+        assertNotSame(locks.get(1), locks.get(2));
+    }
+
+    @Test
+    public void foldersInParallel() throws InterruptedException {
+        // Both threads hold the lock of their folder at the same time
+        final FolderLocks locks = new FolderLocks();
+        final CountDownLatch holding = new CountDownLatch(2);
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (locks.get(2)) {
+                    holding.countDown();
+                    try {
+                        holding.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+        other.start();
+
+        boolean parallel;
+        synchronized (locks.get(1)) {
+            holding.countDown();
+            parallel = holding.await(10, TimeUnit.SECONDS);
+        }
+        other.join();
+
+        assertTrue(parallel);
+    }
+
+    @Test
+    public void folderSerialized() throws InterruptedException {
+        // The lock of a folder is held by one thread at a time
+        final FolderLocks locks = new FolderLocks();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch acquired = new CountDownLatch(1);
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                synchronized (locks.get(1)) {
+                    acquired.countDown();
+                }
+            }
+        });
+
+        synchronized (locks.get(1)) {
+            other.start();
+            started.await();
+            assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        }
+        other.join();
+
+        assertEquals(0, acquired.getCount());
+    }
+}
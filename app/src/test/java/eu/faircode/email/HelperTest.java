@@ -0,0 +1,138 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HelperTest {
+    @Test
+    public void exceptEmpty() {
+        assertArrayEquals(new long[0], Helper.except(new long[0], new long[0]));
+        assertArrayEquals(new long[]{1, 2}, Helper.except(new long[]{1, 2}, new long[0]));
+        assertArrayEquals(new long[0], Helper.except(new long[0], new long[]{1, 2}));
+    }
+
+    @Test
+    public void exceptDisjoint() {
+        assertArrayEquals(new long[]{1, 3, 5}, Helper.except(new long[]{1, 3, 5}, new long[]{2, 4, 6}));
+        assertArrayEquals(new long[]{1, 2}, Helper.except(new long[]{1, 2}, new long[]{7, 8}));
+        assertArrayEquals(new long[]{7, 8}, Helper.except(new long[]{7, 8}, new long[]{1, 2}));
+    }
+
+    @Test
+    public void exceptOverlap() {
+        assertArrayEquals(new long[]{1, 4}, Helper.except(new long[]{1, 2, 3, 4}, new long[]{2, 3, 5}));
+        assertArrayEquals(new long[0], Helper.except(new long[]{1, 2, 3}, new long[]{1, 2, 3}));
+    }
+
+    @Test
+    public void exceptDuplicates() {
+        assertArrayEquals(new long[]{2, 2}, Helper.except(new long[]{1, 1, 2, 2, 3}, new long[]{1, 3, 3}));
+    }
+
+    @Test
+    public void exceptUnsorted() {
+        long[] local = new long[]{5, 1, 4, 2, 3};
+        long[] remote = new long[]{4, 9, 1};
+        assertArrayEquals(new long[]{2, 3, 5}, Helper.except(local, remote));
+
+        // Arrays of the caller are not changed
+        assertArrayEquals(new long[]{5, 1, 4, 2, 3}, local);
+        assertArrayEquals(new long[]{4, 9, 1}, remote);
+    }
+
+    @Test
+    public void exceptOrderByUid() {
+        // Local uids come from DaoMessage.getUids (ORDER BY uid), remote uids from searchUids (sorted)
+        // - IMAP uids are unsigned 32 bit numbers and do not fit in an int
+        List<Long> local = Arrays.asList(3L, 2147483648L, 4294967295L);
+        long[] remote = new long[]{3L, 4294967295L};
+        assertArrayEquals(new long[]{2147483648L}, Helper.except(Helper.toLongArray(local), remote));
+    }
+
+    @Test
+    public void exceptLarge() {
+        // Same result as the list removal it replaced
+        long[] local = uids(10000, 1);
+        long[] remote = uids(10000, 2);
+
+        List<Long> list = new ArrayList<>(Helper.fromLongArray(local));
+        for (long uid : remote)
+            list.remove(uid);
+
+        assertArrayEquals(Helper.toLongArray(list), Helper.except(local, remote));
+    }
+
+    @Test
+    public void windowsEmpty() {
+        assertEquals(0, Helper.getWindows(0, 1000).size());
+    }
+
+    @Test
+    public void windowsPartial() {
+        List<int[]> windows = Helper.getWindows(3, 1000);
+        assertEquals(1, windows.size());
+        assertArrayEquals(new int[]{0, 2}, windows.get(0));
+    }
+
+    @Test
+    public void windowsExact() {
+        List<int[]> windows = Helper.getWindows(2000, 1000);
+        assertEquals(2, windows.size());
+        assertArrayEquals(new int[]{1000, 1999}, windows.get(0));
+        assertArrayEquals(new int[]{0, 999}, windows.get(1));
+    }
+
+    @Test
+    public void windowsCover() {
+        for (int count = 0; count < 50; count++)
+            for (int size = 1; size < 10; size++) {
+                // Every index exactly once, newest first
+                int next = count - 1;
+                for (int[] window : Helper.getWindows(count, size)) {
+                    assertEquals(next, window[1]);
+                    assertTrue(window[0] <= window[1] && window[1] - window[0] < size);
+                    next = window[0] - 1;
+                }
+                assertEquals(-1, next);
+            }
+    }
+
+    private static long[] uids(int count, int seed) {
+        // Sorted, unique and with gaps, like the uids of a folder
+        Random random = new Random(seed);
+        long[] result = new long[count];
+        long uid = 0;
+        for (int i = 0; i < count; i++) {
+            uid += 1 + random.nextInt(3);
+            result[i] = uid;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,53 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncPacerTest {
+    @Test
+    public void noContention() {
+        assertEquals(0, SyncPacer.getBackoff(0, 0));
+        assertEquals(0, SyncPacer.getBackoff(0, 50));
+        assertEquals(250, SyncPacer.getBackoff(500, 10));
+    }
+
+    @Test
+    public void contention() {
+        assertEquals(20, SyncPacer.getBackoff(0, 51));
+        assertEquals(40, SyncPacer.getBackoff(20, 100));
+        assertEquals(1000, SyncPacer.getBackoff(800, 100));
+        assertEquals(1000, SyncPacer.getBackoff(1000, 100));
+    }
+
+    @Test
+    public void recover() {
+        long backoff = 0;
+        for (int i = 0; i < 10; i++)
+            backoff = SyncPacer.getBackoff(backoff, 100);
+        assertEquals(1000, backoff);
+
+        for (int i = 0; i < 10; i++)
+            backoff = SyncPacer.getBackoff(backoff, 0);
+        assertEquals(0, backoff);
+    }
+}